@@ -0,0 +1,21 @@
+#!/bin/bash
+#Compares the throughput of the HTTP engines signing small documents.
+#Start one signer with SIGNER_HTTP_ENGINE=jdk and one with SIGNER_HTTP_ENGINE=grizzly, then run:
+#  ./benchmarkEngines.sh <jdk url> <grizzly url> <key label> [rates] [seconds]
+#Each rate is sent to each engine for the given seconds, over persistent connections, and the achieved rate
+#and the sign response time percentiles (ms) are printed side by side.
+#@author lddecaro@amazon.com
+#The load generator is only in the jar built with: mvn -Pbenchmark package
+JAR=${SIGNER_JAR:-target/signer-1.0-SNAPSHOT.jar}
+RATES=${4:-"100 200 400 800 1600"}
+SECONDS_PER_RUN=${5:-30}
+export SIGNER_LOAD_MIX=sign:1
+export SIGNER_LOAD_SIZES=${SIGNER_LOAD_SIZES:-2k:1}
+for RATE in $RATES
+do
+	for ENGINE in jdk:$1 grizzly:$2
+	do
+		echo "== ${ENGINE%%:*} at $RATE requests/s"
+		java -jar $JAR load ${ENGINE#*:} $3 $RATE $SECONDS_PER_RUN | grep -E "^(Target|sign |all| +count)"
+	done
+done
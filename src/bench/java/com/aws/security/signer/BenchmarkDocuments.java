@@ -0,0 +1,48 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+/**
+ * Documents of the benchmarks: an NF-e batch (enviNFe) with as many NFe as needed to reach a size, with the
+ * namespaces, attributes, comments and accented text found in real batches.
+ *
+ * @author lddecaro@amazon.com
+ */
+final class BenchmarkDocuments {
+
+	private BenchmarkDocuments() {}
+
+	/**
+	 * @param kb approximate size of the document, in KB
+	 */
+	static String nfeBatch(int kb) {
+
+		StringBuilder xml = new StringBuilder(kb * 1024 + 1024);
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<enviNFe xmlns=\"http://www.portalfiscal.inf.br/nfe\" versao=\"4.00\"><idLote>1</idLote><indSinc>0</indSinc>\n");
+		for (int i = 0; xml.length() < kb * 1024; i++) {
+			xml.append("<NFe><infNFe Id=\"NFe3519").append(String.format("%040d", i)).append("\" versao=\"4.00\">")
+				.append("<ide><cUF>35</cUF><natOp>Venda de mercadoria</natOp><mod>55</mod><serie>1</serie><nNF>").append(i).append("</nNF>")
+				.append("<dhEmi>2019-09-11T10:00:00-03:00</dhEmi><tpNF>1</tpNF></ide>\n")
+				.append("<!-- emitente -->")
+				.append("<emit><CNPJ>00000000000191</CNPJ><xNome>Emitente de Produ\u00e7\u00e3o Ltda</xNome>")
+				.append("<enderEmit><xLgr>Avenida S\u00e3o Jo\u00e3o</xLgr><nro>1000</nro><xMun>S\u00e3o Paulo</xMun><UF>SP</UF></enderEmit></emit>\n")
+				.append("<det nItem=\"1\"><prod><cProd>").append(i).append("</cProd><xProd>Produto &amp; servi\u00e7o</xProd>")
+				.append("<qCom>1.0000</qCom><vUnCom>10.00</vUnCom></prod></det>\n")
+				.append("<total><ICMSTot><vProd>10.00</vProd><vNF>10.00</vNF></ICMSTot></total></infNFe></NFe>\n");
+		}
+		return xml.append("</enviNFe>").toString();
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.crypto.AlgorithmMethod;
+import javax.xml.crypto.Data;
+import javax.xml.crypto.KeySelector;
+import javax.xml.crypto.KeySelectorException;
+import javax.xml.crypto.KeySelectorResult;
+import javax.xml.crypto.URIReference;
+import javax.xml.crypto.XMLCryptoContext;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Digest of a whole document under each canonicalization, computed three ways:
+ *
+ * - buffered: the canonical form is written to a byte array, which is then digested.
+ * - streamed: the canonical form is written straight into the MessageDigest, with no intermediate array.
+ * - reference: the digest of a ds:Reference as the JSR 105 implementation computes it when signing, which is
+ *   what {@link XMLSigner} uses.
+ *
+ * Run with: mvn -Pbenchmark package, then java -cp target/signer-1.0-SNAPSHOT.jar org.openjdk.jmh.Main C14nBenchmark
+ *
+ * @author lddecaro@amazon.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class C14nBenchmark {
+
+	private static final OutputStream DISCARD = new OutputStream() {
+		public void write(int b) {}
+		public void write(byte[] b, int off, int len) {}
+	};
+
+	/** None of the benchmarks checks a SignatureValue, so no key is ever selected. */
+	private static final KeySelector NO_KEY = new KeySelector() {
+		public KeySelectorResult select(KeyInfo keyInfo, Purpose purpose, AlgorithmMethod method, XMLCryptoContext context) throws KeySelectorException {
+			throw new KeySelectorException("No key to select");
+		}
+	};
+
+	@Param({"1", "50", "3000"})
+	public int sizeKb;
+
+	@Param({"inclusive", "inclusive-comments", "exclusive", "exclusive-comments"})
+	public String c14n;
+
+	private XMLSignatureFactory fac;
+	private Document doc;
+	private URIReference uri;
+	private Transform transform;
+	private MessageDigest digest;
+	private Element probe;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+
+		fac = XmlFactories.signatureFactory();
+		doc = XmlFactories.parse(BenchmarkDocuments.nfeBatch(sizeKb));
+		Canonicalization canonicalization = Canonicalization.fromName(c14n);
+		// "" leaves the comments out of the document, the XPointer keeps them for the variants with comments
+		String reference = canonicalization.withoutComments() == canonicalization ? "" : "#xpointer(/)";
+		digest = MessageDigest.getInstance("SHA-256");
+
+		Element signature = doc.createElementNS(XMLSignature.XMLNS, "ds:Signature");
+		Element signedInfo = child(signature, "SignedInfo");
+		child(signedInfo, "CanonicalizationMethod").setAttributeNS(null, "Algorithm", canonicalization.getAlgorithm());
+		child(signedInfo, "SignatureMethod").setAttributeNS(null, "Algorithm", XMLSigner.RSA_SHA256_W3C_ID);
+		Element ref = child(signedInfo, "Reference");
+		ref.setAttributeNS(null, "URI", reference);
+		child(child(ref, "Transforms"), "Transform").setAttributeNS(null, "Algorithm", canonicalization.getAlgorithm());
+		child(ref, "DigestMethod").setAttributeNS(null, "Algorithm", DigestMethod.SHA256);
+		child(ref, "DigestValue");
+		child(signature, "SignatureValue");
+		probe = signature;
+		// the dereferencer resolves the URI attribute of an unmarshalled reference
+		Reference unmarshalled = (Reference) fac.unmarshalXMLSignature(new DOMValidateContext(NO_KEY, probe)).getSignedInfo().getReferences().get(0);
+		uri = unmarshalled;
+		transform = (Transform) unmarshalled.getTransforms().get(0);
+	}
+
+	@Benchmark
+	public byte[] buffered() throws Exception {
+		DOMValidateContext context = new DOMValidateContext(NO_KEY, doc);
+		Data data = fac.getURIDereferencer().dereference(uri, context);
+		ByteArrayOutputStream canonical = new ByteArrayOutputStream();
+		transform.transform(data, context, canonical);
+		return digest.digest(canonical.toByteArray());
+	}
+
+	@Benchmark
+	public byte[] streamed() throws Exception {
+		DOMValidateContext context = new DOMValidateContext(NO_KEY, doc);
+		Data data = fac.getURIDereferencer().dereference(uri, context);
+		transform.transform(data, context, new DigestOutputStream(DISCARD, digest));
+		return digest.digest();
+	}
+
+	@Benchmark
+	public byte[] reference() throws Exception {
+		// a signature that is never attached to the document, validating its reference computes the digest
+		DOMValidateContext context = new DOMValidateContext(NO_KEY, probe);
+		Reference reference = (Reference) fac.unmarshalXMLSignature(context).getSignedInfo().getReferences().get(0);
+		reference.validate(context);
+		return reference.getCalculatedDigestValue();
+	}
+
+	private static Element child(Element parent, String name) {
+		Element element = parent.getOwnerDocument().createElementNS(XMLSignature.XMLNS, "ds:"+name);
+		parent.appendChild(element);
+		return element;
+	}
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import javax.ws.rs.core.MediaType;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+
+/**
+ * Open loop load generator for a running signer, built with the benchmark profile. Started with:
+ * App load {base url} {key:weight,...} {requests/s} {seconds}
+ *
+ * Requests are sent at a fixed arrival rate, whatever the service does, to /xml/sign/{key}, /xml/validate/{key} and
+ * /xml/batch/validate in the proportions of SIGNER_LOAD_MIX, with documents of the sizes of SIGNER_LOAD_SIZES and the
+ * key labels given. A closed loop client waits for each response before sending the next request, so while the service
+ * stalls it stops sending and the stall is left out of its percentiles (coordinated omission). Here the response time of
+ * a request is measured from the time it was scheduled to be sent, so the time it waited behind a slow service, for a
+ * connection or for the generator, is counted. The service time, from the time it was actually sent, is reported apart.
+ *
+ * Every document signed carries a sequence number, so no result is served by the result cache. Validations use
+ * documents signed before the run starts. Requests of the first SIGNER_LOAD_WARMUP seconds are sent but not recorded.
+ *
+ * @author lddecaro@amazon.com
+ */
+class LoadGenerator {
+
+	private static final Logger	logger	=	LogManager.getLogger(LoadGenerator.class);
+
+	/** Microseconds, longer response times are recorded as this. */
+	private static final long HIGHEST_TRACKABLE = TimeUnit.HOURS.toMicros(1);
+
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+	private static final String PAYLOAD = "The quick brown fox jumps over the lazy dog 0123456789";
+
+	enum Operation {
+		SIGN, VALIDATE, BATCH;
+
+		static Operation fromName(String name) {
+			for (Operation operation : values()) {
+				if (operation.name().equalsIgnoreCase(name)) {
+					return operation;
+				}
+			}
+			throw new IllegalArgumentException("Unknown operation "+name+", use sign, validate or batch");
+		}
+	}
+
+	private final String baseUri;
+	private final Weighted<String> keys;
+	private final Weighted<Integer> sizes;
+	private final Weighted<Operation> operations;
+	private final double rate;
+	private final long duration;
+	private final long warmup;
+	private final int connections;
+	private final int batchSize;
+	private final int timeout;
+	private final String histogramFile;
+
+	private final Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+	/** Documents of each size, without the root element that carries the sequence number. */
+	private final Map<Integer, String> payloads = new HashMap<>();
+	/** Documents signed before the run for the validations, by key label and size. */
+	private final Map<String, String> signed = new HashMap<>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final Gson gson = new Gson();
+	private long maxLag = 0;
+
+	LoadGenerator(String baseUri, Weighted<String> keys, double rate, long seconds) {
+		if (rate <= 0 || seconds <= 0) {
+			throw new IllegalArgumentException("The rate and the duration must be positive");
+		}
+		this.baseUri = baseUri.endsWith("/") ? baseUri.substring(0, baseUri.length() - 1) : baseUri;
+		this.keys = keys;
+		this.rate = rate;
+		this.duration = TimeUnit.SECONDS.toNanos(seconds);
+		this.sizes = Weighted.parse(SignerConfig.getString("SIGNER_LOAD_SIZES", "2k:70,64k:25,1m:5"), LoadGenerator::parseSize);
+		this.operations = Weighted.parse(SignerConfig.getString("SIGNER_LOAD_MIX", "sign:80,validate:15,batch:5"), Operation::fromName);
+		this.warmup = TimeUnit.SECONDS.toNanos(SignerConfig.getLong("SIGNER_LOAD_WARMUP", 10));
+		this.connections = SignerConfig.getInt("SIGNER_LOAD_CONNECTIONS", 256);
+		this.batchSize = SignerConfig.getInt("SIGNER_LOAD_BATCH_SIZE", 20);
+		this.timeout = (int) TimeUnit.SECONDS.toMillis(SignerConfig.getLong("SIGNER_LOAD_TIMEOUT", 30));
+		this.histogramFile = SignerConfig.getString("SIGNER_LOAD_HISTOGRAM_FILE", null);
+		for (Operation operation : Operation.values()) {
+			stats.put(operation, new Stats());
+		}
+	}
+
+	/**
+	 * Entry point of the load test mode, args are: load {base url} {key:weight,...} {requests/s} {seconds}.
+	 *
+	 * @return the exit status, 0 when every request succeeded
+	 */
+	static int run(String[] args) throws Exception {
+
+		if (args.length != 5) {
+			System.err.println("Usage: App load <base url, e.g. http://localhost:8080> <key-label[:weight],...> <requests per second> <seconds>");
+			return 2;
+		}
+		LoadGenerator load;
+		try {
+			load = new LoadGenerator(args[1], Weighted.parse(args[2], Function.identity()), Double.parseDouble(args[3]), Long.parseLong(args[4]));
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return 2;
+		}
+		return load.run();
+	}
+
+	int run() throws Exception {
+
+		if (System.getProperty("http.maxConnections") == null) {
+			// keep alive connections kept per host by HttpURLConnection, 5 by default
+			System.setProperty("http.maxConnections", String.valueOf(connections));
+		}
+		prepare();
+		// requests wait in the queue for a connection, the wait is part of their response time
+		ExecutorService pool = new ThreadPoolExecutor(connections, connections, 0, TimeUnit.MILLISECONDS,
+														new LinkedBlockingQueue<>(), new NamedThreadFactory("signer-load-"));
+		long start = System.nanoTime();
+		long measured = start + warmup;
+		long end = measured + duration;
+		logger.info("Sending "+rate+" requests/s to "+baseUri+" for "+TimeUnit.NANOSECONDS.toSeconds(duration)+" s after a warm up of "
+					+TimeUnit.NANOSECONDS.toSeconds(warmup)+" s");
+		try {
+			for (long i = 0; ; i++) {
+				final long intended = start + (long) (i * 1e9 / rate);
+				if (intended >= end) {
+					break;
+				}
+				long delay;
+				while ((delay = intended - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(delay);
+				}
+				if (intended >= measured) {
+					maxLag = Math.max(maxLag, -delay);
+				}
+				final Operation operation = operations.pick();
+				final String key = keys.pick();
+				final int size = sizes.pick();
+				pool.execute(() -> send(operation, key, size, intended, intended >= measured));
+			}
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		report(System.nanoTime() - measured);
+		long unsuccessful = 0;
+		for (Stats s : stats.values()) {
+			unsuccessful += s.rejected.get() + s.failed.get();
+		}
+		return unsuccessful == 0 ? 0 : 1;
+	}
+
+	/**
+	 * Builds the documents of each size and signs one per key label and size for the validations.
+	 */
+	private void prepare() throws IOException {
+
+		for (int size : sizes.values()) {
+			StringBuilder payload = new StringBuilder(size + 64);
+			for (int item = 0; payload.length() < size; item++) {
+				payload.append("<item n=\"").append(item).append("\">").append(PAYLOAD).append("</item>");
+			}
+			payloads.put(size, payload.toString());
+		}
+		if (!operations.values().contains(Operation.VALIDATE) && !operations.values().contains(Operation.BATCH)) {
+			return;
+		}
+		for (String key : keys.values()) {
+			for (int size : sizes.values()) {
+				Reply reply = post("/xml/sign/"+encode(key), MediaType.APPLICATION_XML, document(size), "load-prepare");
+				if (reply.status != 200) {
+					throw new IllegalStateException("Could not sign a document of "+size+" bytes with "+key+": "+reply.status+" "+reply.body);
+				}
+				signed.put(key+"/"+size, reply.body);
+			}
+		}
+	}
+
+	private String document(int size) {
+		return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><loadTest xmlns=\"urn:aws:signer:load\" seq=\""+sequence.incrementAndGet()+"\">"
+				+ payloads.get(size) + "</loadTest>";
+	}
+
+	private void send(Operation operation, String key, int size, long intended, boolean recorded) {
+
+		Stats operationStats = stats.get(operation);
+		String path;
+		String contentType = MediaType.APPLICATION_XML;
+		String body;
+		switch (operation) {
+			case SIGN:
+				path = "/xml/sign/"+encode(key);
+				body = document(size);
+				break;
+			case VALIDATE:
+				path = "/xml/validate/"+encode(key);
+				body = signed.get(key+"/"+size);
+				break;
+			default:
+				path = "/xml/batch/validate";
+				contentType = XMLSigner.NDJSON;
+				StringBuilder lines = new StringBuilder();
+				for (int i = 0; i < batchSize; i++) {
+					BatchDocument document = new BatchDocument();
+					document.setId(String.valueOf(i));
+					document.setKey(key);
+					document.setXml(signed.get(key+"/"+size));
+					lines.append(gson.toJson(document)).append('\n');
+				}
+				body = lines.toString();
+				break;
+		}
+		long sent = System.nanoTime();
+		String error = null;
+		int status = 0;
+		try {
+			Reply reply = post(path, contentType, body, "load-"+sequence.incrementAndGet());
+			status = reply.status;
+			if (status < 200 || status >= 300) {
+				error = status+" "+reply.body;
+			} else if (operation == Operation.VALIDATE && !"true".equals(reply.body.trim())) {
+				error = "signature not valid";
+			} else if (operation == Operation.BATCH && reply.body.contains("\"valid\":false")) {
+				error = "batch with signatures not valid";
+			}
+		} catch (IOException e) {
+			error = e.toString();
+		}
+		long done = System.nanoTime();
+		if (!recorded) {
+			return;
+		}
+		operationStats.responseTime.recordValue(Math.min(HIGHEST_TRACKABLE, TimeUnit.NANOSECONDS.toMicros(done - intended)));
+		operationStats.serviceTime.recordValue(Math.min(HIGHEST_TRACKABLE, TimeUnit.NANOSECONDS.toMicros(done - sent)));
+		if (error == null) {
+			operationStats.ok.incrementAndGet();
+		} else if (status == 429 || status == 503) {
+			operationStats.rejected.incrementAndGet();
+		} else {
+			operationStats.failed.incrementAndGet();
+			if (operationStats.lastError.getAndSet(error) == null) {
+				logger.warn(operation+" failed: "+error);
+			}
+		}
+	}
+
+	private Reply post(String path, String contentType, String body, String correlationId) throws IOException {
+
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseUri + path).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setConnectTimeout(timeout);
+		connection.setReadTimeout(timeout);
+		connection.setRequestProperty("Content-Type", contentType);
+		connection.setRequestProperty(RequestTiming.CORRELATION_HEADER, correlationId);
+		connection.setFixedLengthStreamingMode(bytes.length);
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(bytes);
+		}
+		int status = connection.getResponseCode();
+		// the response is read to the end so the connection goes back to the keep alive cache
+		InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		if (in == null) {
+			return new Reply(status, "");
+		}
+		try {
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				response.write(buffer, 0, n);
+			}
+			return new Reply(status, new String(response.toByteArray(), StandardCharsets.UTF_8));
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String encode(String key) {
+		try {
+			return URLEncoder.encode(key, "UTF-8").replace("+", "%20");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void report(long elapsed) throws IOException {
+
+		double seconds = Math.max(1, elapsed) / 1e9;
+		Histogram all = new Histogram(HIGHEST_TRACKABLE, 3);
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("Target %.1f requests/s, achieved %.1f requests/s in %.1f s%n", rate, totalCount() / seconds, seconds));
+		report.append(String.format("%-9s %8s %8s %8s %8s  %s%n", "", "count", "ok", "rejected", "failed", "percentiles (ms) of "+percentileNames()));
+		for (Map.Entry<Operation, Stats> entry : stats.entrySet()) {
+			Stats s = entry.getValue();
+			if (s.responseTime.getTotalCount() == 0) {
+				continue;
+			}
+			all.add(s.responseTime);
+			report.append(String.format("%-9s %8d %8d %8d %8d  response %s%n", entry.getKey().name().toLowerCase(), s.responseTime.getTotalCount(),
+										s.ok.get(), s.rejected.get(), s.failed.get(), percentiles(s.responseTime)));
+			report.append(String.format("%-45s  service  %s%n", "", percentiles(s.serviceTime)));
+			if (s.lastError.get() != null) {
+				report.append(String.format("%-45s  last error: %s%n", "", s.lastError.get()));
+			}
+		}
+		report.append(String.format("%-45s  response %s%n", "all", percentiles(all)));
+		report.append(String.format("Response times count from the time each request was scheduled, service times from the time it was sent. "
+									+ "Max lag of the generator behind the schedule: %.3f ms", maxLag / 1e6));
+		if (maxLag > TimeUnit.MILLISECONDS.toNanos(50)) {
+			report.append(String.format("%nThe generator fell behind the schedule, lower the rate or run more generators"));
+		}
+		System.out.println(report);
+		logger.info(report.toString());
+		if (histogramFile != null) {
+			try (PrintStream out = new PrintStream(histogramFile, "UTF-8")) {
+				all.outputPercentileDistribution(out, 1000.0);
+			}
+			logger.info("Response time distribution of all requests, in ms, written to "+histogramFile);
+		}
+	}
+
+	private long totalCount() {
+		long count = 0;
+		for (Stats s : stats.values()) {
+			count += s.responseTime.getTotalCount();
+		}
+		return count;
+	}
+
+	private static String percentileNames() {
+		StringBuilder names = new StringBuilder();
+		for (double percentile : PERCENTILES) {
+			names.append(String.format("p%s ", new DecimalFormat("0.##").format(percentile)));
+		}
+		return names.append("max").toString();
+	}
+
+	private static String percentiles(Histogram histogram) {
+		StringBuilder values = new StringBuilder();
+		for (double percentile : PERCENTILES) {
+			values.append(String.format("%.3f ", histogram.getValueAtPercentile(percentile) / 1000.0));
+		}
+		return values.append(String.format("%.3f", histogram.getMaxValue() / 1000.0)).toString();
+	}
+
+	/**
+	 * Sizes in bytes, with an optional k or m suffix.
+	 */
+	static int parseSize(String size) {
+		String value = size.trim().toLowerCase();
+		int unit = value.endsWith("k") ? 1024 : value.endsWith("m") ? 1024 * 1024 : 1;
+		try {
+			return Integer.parseInt(unit == 1 ? value : value.substring(0, value.length() - 1)) * unit;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid size "+size+", use bytes or a k or m suffix");
+		}
+	}
+
+	private static class Stats {
+		private final Histogram responseTime = new ConcurrentHistogram(HIGHEST_TRACKABLE, 3);
+		private final Histogram serviceTime = new ConcurrentHistogram(HIGHEST_TRACKABLE, 3);
+		private final AtomicLong ok = new AtomicLong();
+		private final AtomicLong rejected = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicReference<String> lastError = new AtomicReference<>();
+	}
+
+	private static class Reply {
+		private final int status;
+		private final String body;
+
+		private Reply(int status, String body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * Values picked at random in proportion to their weights, parsed from value:weight,value:weight...
+	 * A value without a weight weighs 1.
+	 */
+	static class Weighted<T> {
+
+		private final List<T> values = new ArrayList<>();
+		private final List<Integer> cumulative = new ArrayList<>();
+		private int total = 0;
+
+		static <T> Weighted<T> parse(String spec, Function<String, T> parser) {
+			Weighted<T> weighted = new Weighted<>();
+			for (String entry : spec.split(",")) {
+				if ("".equals(entry.trim())) {
+					continue;
+				}
+				int colon = entry.lastIndexOf(':');
+				int weight;
+				try {
+					weight = colon < 0 ? 1 : Integer.parseInt(entry.substring(colon + 1).trim());
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid weight in "+entry);
+				}
+				if (weight < 0) {
+					throw new IllegalArgumentException("Invalid weight in "+entry);
+				}
+				if (weight > 0) {
+					weighted.values.add(parser.apply(colon < 0 ? entry.trim() : entry.substring(0, colon).trim()));
+					weighted.total += weight;
+					weighted.cumulative.add(weighted.total);
+				}
+			}
+			if (weighted.total == 0) {
+				throw new IllegalArgumentException("Nothing to pick from in "+spec);
+			}
+			return weighted;
+		}
+
+		T pick() {
+			int point = ThreadLocalRandom.current().nextInt(total);
+			for (int i = 0; ; i++) {
+				if (point < cumulative.get(i)) {
+					return values.get(i);
+				}
+			}
+		}
+
+		List<T> values() {
+			return values;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+/**
+ * Parse and serialize times of the backends of {@link XmlFactories} (SIGNER_XML_PARSER and SIGNER_XML_SERIALIZER),
+ * on small, medium and multi-MB documents. The sign and validate paths parse each document once and the sign path
+ * serializes it once.
+ *
+ * Run with: mvn -Pbenchmark package, then java -cp target/signer-1.0-SNAPSHOT.jar org.openjdk.jmh.Main XmlFactoriesBenchmark
+ *
+ * @author lddecaro@amazon.com
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XmlFactoriesBenchmark {
+
+	@State(Scope.Thread)
+	public static class ParserState {
+
+		@Param({"1", "50", "3000"})
+		public int sizeKb;
+
+		@Param({"dom", "stax"})
+		public String parser;
+
+		String xml;
+		XmlFactories.Parser backend;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			xml = BenchmarkDocuments.nfeBatch(sizeKb);
+			backend = XmlFactories.Parser.valueOf(parser.toUpperCase());
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class SerializerState {
+
+		@Param({"1", "50", "3000"})
+		public int sizeKb;
+
+		@Param({"transformer", "ls"})
+		public String serializer;
+
+		int length;
+		Document doc;
+		XmlFactories.Serializer backend;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			String xml = BenchmarkDocuments.nfeBatch(sizeKb);
+			length = xml.length();
+			doc = XmlFactories.parse(xml, XmlFactories.Parser.DOM);
+			backend = XmlFactories.Serializer.valueOf(serializer.toUpperCase());
+		}
+	}
+
+	@Benchmark
+	public Document parse(ParserState state) throws Exception {
+		return XmlFactories.parse(state.xml, state.backend);
+	}
+
+	@Benchmark
+	public String serialize(SerializerState state) throws Exception {
+		StringWriter writer = new StringWriter(state.length + 1024);
+		XmlFactories.serialize(state.doc, writer, state.backend);
+		return writer.toString();
+	}
+}
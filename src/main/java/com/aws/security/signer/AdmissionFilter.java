@@ -0,0 +1,379 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+@SuppressWarnings("restriction")
+/**
+ * Admission control in front of the signer. The requests of each bulkhead (see {@link BulkheadFilter}) have lanes of
+ * their own, so requests stuck on the HSM do not hold back validations. POST requests (sign, validate, create) go
+ * through one of two lanes of their bulkhead: documents up to SIGNER_LARGE_DOCUMENT_BYTES through the small lane
+ * and larger ones, or ones of unknown length, through the large lane. Each lane runs at most its max concurrent requests and holds at most its max queue
+ * more, each waiting up to its timeout. Anything beyond that is answered right away with 429 and Retry-After,
+ * so the requests accepted keep a bounded latency and the heap is not filled by requests that would time out anyway.
+ *
+ * Every request also reserves an estimate of the heap it takes (Content-Length times SIGNER_MEMORY_FACTOR) from
+ * a global memory budget. Small documents always get their reservation, their lane already bounds them. Large
+ * documents wait for the budget to have room, so a few huge payloads cannot starve or run the heap out from under
+ * the small ones. Bodies of unknown length extend their reservation as they are read and fail once the budget has
+ * no room left. NDJSON batches are not counted, they hold at most SIGNER_BATCH_MAX_IN_FLIGHT documents.
+ * Compressed bodies, inflated by the {@link ContentDecodingFilter}, are taken as COMPRESSION_RATIO times their
+ * Content-Length and also extend their reservation as the inflated body is read.
+ *
+ * GET requests (ping, metrics, listKeys) are never held back, they are what tells the service is overloaded.
+ *
+ * @author lddecaro@amazon.com
+ */
+public class AdmissionFilter extends Filter {
+
+	private static final Logger	logger	=	LogManager.getLogger(AdmissionFilter.class);
+
+	/** XML compresses 5 to 10 times. */
+	static final long COMPRESSION_RATIO = 10;
+
+	private final Lanes hsm;
+	private final Lanes cpu;
+	private final Predicate<String> hsmBound;
+	private final MemoryBudget budget;
+	private final long largeDocument;
+	private final long retryAfter;
+
+	/**
+	 * @param hsm lanes of the requests of the HSM bulkhead
+	 * @param cpu lanes of all the other requests
+	 * @param hsmBound tells from the path of a request whether it runs in the HSM bulkhead
+	 * @param largeDocument size in bytes above which a document goes through the large lane
+	 * @param retryAfter seconds sent in the Retry-After header of rejected requests
+	 */
+	public AdmissionFilter(Lanes hsm, Lanes cpu, Predicate<String> hsmBound, MemoryBudget budget, long largeDocument, long retryAfter) {
+		this.hsm = hsm;
+		this.cpu = cpu;
+		this.hsmBound = hsmBound;
+		this.budget = budget;
+		this.largeDocument = largeDocument;
+		this.retryAfter = retryAfter;
+	}
+
+	@Override
+	public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+
+		if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+			chain.doFilter(exchange);
+			return;
+		}
+		String type = exchange.getRequestHeaders().getFirst("Content-Type");
+		boolean batch = type != null && type.trim().toLowerCase().startsWith(XMLSigner.NDJSON);
+		long length = contentLength(exchange);
+		boolean compressed = exchange.getRequestBody() instanceof ContentDecodingFilter.Decoded;
+		if (compressed) {
+			long compressedLength = ((ContentDecodingFilter.Decoded) exchange.getRequestBody()).getCompressedLength();
+			length = compressedLength < 0 ? -1 : compressedLength * COMPRESSION_RATIO;
+		}
+		Lanes lanes = hsmBound.test(exchange.getRequestURI().getPath()) ? hsm : cpu;
+		Lane lane = batch || (length >= 0 && length <= largeDocument) ? lanes.small : lanes.large;
+		long reservation = batch ? 0 : budget.factor * (length < 0 ? largeDocument : length);
+
+		if (reservation > budget.total) {
+			reject(exchange, 413, "Document too large for the memory budget of the signer.");
+			return;
+		}
+		String rejection = lane.acquire();
+		if (rejection != null) {
+			reject(exchange, 429, rejection);
+			return;
+		}
+		BudgetedInputStream body = null;
+		//only what was actually reserved is released, a request that timed out waiting for memory holds none
+		long reserved = 0;
+		try {
+			if (lane == lanes.small) {
+				budget.reserve(reservation);
+			}else if (!budget.reserve(reservation, lane.queueTimeout)) {
+				reject(exchange, 429, "Too many requests. Timed out waiting for memory.");
+				return;
+			}
+			reserved = reservation;
+			if ((length < 0 || compressed) && !batch) {
+				body = new BudgetedInputStream(exchange.getRequestBody(), reservation);
+				exchange.setStreams(body, null);
+			}
+			chain.doFilter(exchange);
+		} finally {
+			budget.release(body == null ? reserved : body.reserved);
+			lane.release();
+		}
+	}
+
+	private static long contentLength(HttpExchange exchange) {
+		String length = exchange.getRequestHeaders().getFirst("Content-Length");
+		try {
+			return length == null ? -1 : Long.parseLong(length.trim());
+		}catch(NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
+	private void reject(HttpExchange exchange, int status, String message) throws IOException {
+
+		logger.debug(message+" Rejected "+exchange.getRequestMethod()+" "+exchange.getRequestURI());
+		byte[] body = message.getBytes(StandardCharsets.UTF_8);
+		if (status == 429) {
+			exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+		}
+		exchange.getResponseHeaders().set("Content-Type", "text/plain");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	public Map<String, Object> stats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("hsm", hsm.stats());
+		stats.put("cpu", cpu.stats());
+		stats.put("memory", budget.stats());
+		return stats;
+	}
+
+	@Override
+	public String description() {
+		return "Admission control with 429 and Retry-After on overload";
+	}
+
+	/**
+	 * The small and the large lane of the requests of a bulkhead.
+	 */
+	public static class Lanes {
+
+		private final Lane small;
+		private final Lane large;
+
+		public Lanes(Lane small, Lane large) {
+			this.small = small;
+			this.large = large;
+		}
+
+		/**
+		 * Threads the bulkhead needs so that every running and waiting request has one, plus some for GET requests.
+		 */
+		public int requiredThreads() {
+			return small.maxConcurrent + small.maxQueue + large.maxConcurrent + large.maxQueue + 4;
+		}
+
+		public Map<String, Object> stats() {
+			Map<String, Object> stats = new LinkedHashMap<>();
+			stats.put("small", small.stats());
+			stats.put("large", large.stats());
+			return stats;
+		}
+	}
+
+	/**
+	 * Requests running at once, up to maxConcurrent, and waiting for their turn, up to maxQueue.
+	 */
+	public static class Lane {
+
+		private final int maxConcurrent;
+		private final int maxQueue;
+		private final long queueTimeout;
+		private final Semaphore permits;
+
+		private final AtomicInteger queued		= new AtomicInteger();
+		private final AtomicLong admitted		= new AtomicLong();
+		private final AtomicLong rejected		= new AtomicLong();
+		private final AtomicLong timedOut		= new AtomicLong();
+
+		/**
+		 * @param maxConcurrent requests running at once
+		 * @param maxQueue requests waiting for a running one to finish
+		 * @param queueTimeout milliseconds a request waits before it is rejected
+		 */
+		public Lane(int maxConcurrent, int maxQueue, long queueTimeout) {
+			this.maxConcurrent = maxConcurrent;
+			this.maxQueue = maxQueue;
+			this.queueTimeout = queueTimeout;
+			this.permits = new Semaphore(maxConcurrent, true);
+		}
+
+		/**
+		 * @return null when admitted, otherwise why the request was rejected
+		 */
+		private String acquire() {
+			if (!permits.tryAcquire()) {
+				if (queued.incrementAndGet() > maxQueue) {
+					queued.decrementAndGet();
+					rejected.incrementAndGet();
+					return "Too many requests. Queue is full.";
+				}
+				boolean acquired = false;
+				try {
+					acquired = permits.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				} finally {
+					queued.decrementAndGet();
+				}
+				if (!acquired) {
+					timedOut.incrementAndGet();
+					return "Too many requests. Timed out waiting in the queue.";
+				}
+			}
+			admitted.incrementAndGet();
+			return null;
+		}
+
+		private void release() {
+			permits.release();
+		}
+
+		public Map<String, Object> stats() {
+			Map<String, Object> stats = new LinkedHashMap<>();
+			stats.put("maxConcurrent", maxConcurrent);
+			stats.put("maxQueue", maxQueue);
+			stats.put("active", maxConcurrent - permits.availablePermits());
+			stats.put("queued", queued.get());
+			stats.put("admitted", admitted.get());
+			stats.put("rejected", rejected.get());
+			stats.put("timedOut", timedOut.get());
+			return stats;
+		}
+	}
+
+	/**
+	 * Estimate of the heap held by the requests in flight.
+	 */
+	public static class MemoryBudget {
+
+		private final long total;
+		private final long factor;
+		private long used = 0;
+		private long peak = 0;
+		private long exhausted = 0;
+
+		/**
+		 * @param total bytes of heap the requests in flight may hold
+		 * @param factor heap taken by a request per byte of its body: the String, the DOM and the signed output
+		 */
+		public MemoryBudget(long total, long factor) {
+			this.total = total;
+			this.factor = factor;
+		}
+
+		/**
+		 * Reserves even beyond the budget.
+		 */
+		private synchronized void reserve(long bytes) {
+			used += bytes;
+			peak = Math.max(peak, used);
+		}
+
+		/**
+		 * Reserves only within the budget, waiting up to timeout milliseconds for room.
+		 */
+		private synchronized boolean reserve(long bytes, long timeout) {
+			long deadline = System.currentTimeMillis() + timeout;
+			long wait;
+			while (used + bytes > total && (wait = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					wait(wait);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (used + bytes > total) {
+				exhausted++;
+				return false;
+			}
+			reserve(bytes);
+			return true;
+		}
+
+		private synchronized void release(long bytes) {
+			used -= bytes;
+			notifyAll();
+		}
+
+		public synchronized Map<String, Object> stats() {
+			Map<String, Object> stats = new LinkedHashMap<>();
+			stats.put("budget", total);
+			stats.put("used", used);
+			stats.put("peak", peak);
+			stats.put("exhausted", exhausted);
+			return stats;
+		}
+	}
+
+	/**
+	 * Body of unknown length, or compressed, that extends its reservation, without waiting, as it is read.
+	 */
+	private class BudgetedInputStream extends FilterInputStream {
+
+		private long reserved;
+		private long read = 0;
+
+		private BudgetedInputStream(InputStream in, long reserved) {
+			super(in);
+			this.reserved = reserved;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count(n);
+			}
+			return n;
+		}
+
+		private void count(int n) throws IOException {
+			read += n;
+			while (read * budget.factor > reserved) {
+				long more = budget.factor * largeDocument;
+				if (!budget.reserve(more, 0)) {
+					throw new IOException("Request body exceeds the memory budget of the signer");
+				}
+				reserved += more;
+			}
+		}
+	}
+}
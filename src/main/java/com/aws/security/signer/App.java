@@ -15,6 +15,8 @@
 package com.aws.security.signer;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.UnknownHostException;
 
 import javax.crypto.Cipher;
@@ -54,6 +56,26 @@ public class App {
 	
 	public App() {}
 	
+	/**
+	 * The load generator is only in the jar built with the benchmark profile, so the service jar does not carry it
+	 * nor its libraries.
+	 */
+	private static int runLoadGenerator(String[] args) throws Exception {
+		Method run;
+		try {
+			run = Class.forName("com.aws.security.signer.LoadGenerator").getDeclaredMethod("run", String[].class);
+		}catch(ClassNotFoundException e) {
+			System.err.println("This jar has no load generator, build it with: mvn -Pbenchmark package");
+			return 2;
+		}
+		run.setAccessible(true);
+		try {
+			return (Integer) run.invoke(null, (Object) args);
+		}catch(InvocationTargetException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+	
     public static void main( String[] args ) throws Exception{    	
 	 	/**/
 	 	LoggingConfigurator.configure();
@@ -67,16 +89,25 @@ public class App {
 			logger.info("NOT installed!!");
 		}
         
+        if( args.length > 0 && "sign".equals(args[0]) ) {
+        	//command line mode: signs the files of a directory or zip archive and exits
+        	int status = BulkSigner.run(args);
+        	//log4j2 has no shutdown hook of its own, see GracefulShutdown
+        	LogManager.shutdown();
+        	System.exit(status);
+        }
+        if( args.length > 0 && "load".equals(args[0]) ) {
+        	//load test mode: sends requests to a running signer at a fixed rate and prints the latency percentiles
+        	int status = runLoadGenerator(args);
+        	LogManager.shutdown();
+        	System.exit(status);
+        }
+        
         App app	= new App();
         String uri = app.startServer();
         logger.info("Application started. Try accessing "+uri+"/xml/sign in a post call of your XML file");
         logger.info("Hit ^C to stop the application...");
-        //JVM Shutdown Hook
-		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-
-			    logger.info("Endpoint shutting down....");
-			    Utils.logout();
-			 }));
+        //the shutdown hook of the endpoint drains the requests, then logs out of the HSM, see GracefulShutdown
         
         Thread.currentThread().join();
     }
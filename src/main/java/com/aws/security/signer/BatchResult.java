@@ -0,0 +1,66 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+/**
+ * One line of a NDJSON batch response. Results are written in the order they complete, so index is the
+ * position of the document in the request. Validations set valid, signatures set xml with the signed document.
+ */
+public class BatchResult {
+
+	private long index;
+	private String id;
+	private Boolean valid;
+	private String error;
+	private String xml;
+
+	public BatchResult(){}
+
+	public BatchResult(long index, String id) {
+		this.index = index;
+		this.id = id;
+	}
+
+	public long getIndex() {
+		return index;
+	}
+	public void setIndex(long index) {
+		this.index = index;
+	}
+	public String getId() {
+		return id;
+	}
+	public void setId(String id) {
+		this.id = id;
+	}
+	public Boolean getValid() {
+		return valid;
+	}
+	public void setValid(Boolean valid) {
+		this.valid = valid;
+	}
+	public String getError() {
+		return error;
+	}
+	public void setError(String error) {
+		this.error = error;
+	}
+	public String getXml() {
+		return xml;
+	}
+	public void setXml(String xml) {
+		this.xml = xml;
+	}
+}
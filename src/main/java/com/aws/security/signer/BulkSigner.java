@@ -0,0 +1,265 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Signs every XML file of a directory, or of a zip archive, into an output directory, without the HTTP endpoint.
+ * Started with: App sign {key} {input directory or zip} {output directory}
+ *
+ * Files are read memory mapped and signed by SIGNER_BULK_THREADS threads with the same engine as /xml/sign/{key},
+ * so the HSM scheduler and the KeyInfo and canonicalization configured for the label apply. Each output is written
+ * to a temporary file and moved in place, so an output that exists is complete. A run that is interrupted is
+ * resumed by running it again: the files already signed are skipped.
+ *
+ * @author lddecaro@amazon.com
+ */
+class BulkSigner {
+
+	private static final Logger	logger	=	LogManager.getLogger(BulkSigner.class);
+
+	/** Latencies are counted per millisecond up to this, longer ones in the last slot. */
+	private static final int MAX_LATENCY_MS = 60000;
+
+	private final XMLSigner signer;
+	private final String keyName;
+	private final Path output;
+	private final int threads;
+
+	private final AtomicLong signed		=	new AtomicLong();
+	private final AtomicLong skipped	=	new AtomicLong();
+	private final AtomicLong failed		=	new AtomicLong();
+	private final AtomicLong bytes		=	new AtomicLong();
+	private final AtomicLongArray latencies	=	new AtomicLongArray(MAX_LATENCY_MS + 1);
+
+	BulkSigner(XMLSigner signer, String keyName, Path output, int threads) {
+		this.signer = signer;
+		this.keyName = keyName;
+		this.output = output;
+		this.threads = threads;
+	}
+
+	/**
+	 * Entry point of the command line mode, args are: sign {key} {input} {output}.
+	 *
+	 * @return the exit status, 0 when every file was signed
+	 */
+	static int run(String[] args) throws Exception {
+
+		if (args.length != 4) {
+			System.err.println("Usage: App sign <key-label> <input directory or zip> <output directory>");
+			return 2;
+		}
+		Path input = Paths.get(args[2]).toAbsolutePath().normalize();
+		Path output = Paths.get(args[3]).toAbsolutePath().normalize();
+		if (!Files.exists(input)) {
+			System.err.println("Input not found: "+input);
+			return 2;
+		}
+		Files.createDirectories(output);
+		XMLSigner signer = new XMLSigner();
+		try {
+			BulkSigner bulk = new BulkSigner(signer, args[1],
+											output, SignerConfig.getInt("SIGNER_BULK_THREADS", 2 * Runtime.getRuntime().availableProcessors()));
+			bulk.sign(input);
+			return bulk.failed.get() == 0 ? 0 : 1;
+		} finally {
+			// logs out of the HSM whatever happened, as the shutdown of the server does
+			signer.close(SignerConfig.getLong("SIGNER_DRAIN_TIMEOUT", 25) * 1000);
+		}
+	}
+
+	void sign(Path input) throws Exception {
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new NamedThreadFactory("signer-bulk-"));
+		// files are listed lazily and at most two per thread are waiting, however many there are
+		Semaphore inFlight = new Semaphore(2 * threads);
+		long init = System.nanoTime();
+		logger.info("Signing "+input+" into "+output+" with the key "+keyName+" and "+threads+" threads");
+		try {
+			if (Files.isDirectory(input)) {
+				try (Stream<Path> files = Files.walk(input)) {
+					files.filter(f -> Files.isRegularFile(f) && isXml(f.getFileName().toString()) && !f.startsWith(output))
+						.forEach(f -> submit(pool, inFlight, output.resolve(input.relativize(f).toString()), () -> read(f)));
+				}
+			}else {
+				try (ZipFile zip = new ZipFile(input.toFile())) {
+					Enumeration<? extends ZipEntry> entries = zip.entries();
+					while (entries.hasMoreElements()) {
+						ZipEntry entry = entries.nextElement();
+						if (!entry.isDirectory() && isXml(entry.getName())) {
+							submit(pool, inFlight, output.resolve(entry.getName()).normalize(), () -> read(zip, entry));
+						}
+					}
+					// the entries are read from the zip, it stays open until they are all signed
+					inFlight.acquire(2 * threads);
+					inFlight.release(2 * threads);
+				}
+			}
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		report(System.nanoTime() - init);
+	}
+
+	private interface Source {
+		String read() throws IOException;
+	}
+
+	private void submit(ExecutorService pool, Semaphore inFlight, Path target, Source source) {
+
+		if (!target.startsWith(output)) {
+			logger.error("Skipped "+target+", it is outside of the output directory");
+			failed.incrementAndGet();
+			return;
+		}
+		if (Files.exists(target)) {
+			skipped.incrementAndGet();
+			return;
+		}
+		inFlight.acquireUninterruptibly();
+		pool.execute(() -> {
+			try {
+				signOne(source, target);
+			} finally {
+				inFlight.release();
+			}
+		});
+	}
+
+	private void signOne(Source source, Path target) {
+
+		long init = System.nanoTime();
+		try {
+			String xml = source.read();
+			String signedXml = signer.signDocument(xml, keyName);
+			Files.createDirectories(target.getParent());
+			Path temporary = target.resolveSibling("."+target.getFileName()+".tmp");
+			try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+				writer.write(signedXml);
+			}
+			Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			bytes.addAndGet(utf8Length(xml));
+			signed.incrementAndGet();
+			latencies.incrementAndGet((int) Math.min(MAX_LATENCY_MS, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - init)));
+		} catch (Exception e) {
+			failed.incrementAndGet();
+			logger.error("Could not sign "+target+". Message: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Bytes of the document in UTF-8, the encoding it was read with, without encoding it again.
+	 */
+	private static long utf8Length(String xml) {
+		long length = 0;
+		for (int i = 0; i < xml.length(); i++) {
+			char c = xml.charAt(i);
+			if (c < 0x80) {
+				length++;
+			}else if (c < 0x800) {
+				length += 2;
+			}else if (Character.isHighSurrogate(c) && i + 1 < xml.length() && Character.isLowSurrogate(xml.charAt(i + 1))) {
+				length += 4;
+				i++;
+			}else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	private static boolean isXml(String name) {
+		return name.toLowerCase().endsWith(".xml");
+	}
+
+	/**
+	 * Reads the file memory mapped, decoding the characters straight from the mapping.
+	 */
+	private static String read(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return StandardCharsets.UTF_8.newDecoder().decode(mapped).toString();
+		}
+	}
+
+	private static String read(ZipFile zip, ZipEntry entry) throws IOException {
+		try (InputStream in = zip.getInputStream(entry)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(entry.getSize() > 0 ? (int) entry.getSize() : 8192);
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	private void report(long elapsed) {
+
+		double seconds = Math.max(1, elapsed) / 1e9;
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("Signed %d, skipped %d (already signed), failed %d in %.1f s%n", signed.get(), skipped.get(), failed.get(), seconds));
+		report.append(String.format("Throughput: %.1f documents/s, %.2f MB/s%n", signed.get() / seconds, bytes.get() / seconds / (1024 * 1024)));
+		report.append(String.format("Latency (ms): p50 %d, p90 %d, p99 %d, max %d", percentile(0.5), percentile(0.9), percentile(0.99), percentile(1)));
+		System.out.println(report);
+		logger.info(report.toString());
+	}
+
+	/**
+	 * Latency in milliseconds of the given fraction of the documents signed, MAX_LATENCY_MS meaning at least that.
+	 */
+	private long percentile(double fraction) {
+		long count = signed.get();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * count));
+		long seen = 0;
+		for (int ms = 0; ms < latencies.length(); ms++) {
+			seen += latencies.get(ms);
+			if (seen >= rank) {
+				return ms;
+			}
+		}
+		return MAX_LATENCY_MS;
+	}
+}
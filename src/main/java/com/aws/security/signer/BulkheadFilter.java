@@ -0,0 +1,183 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.ws.rs.Path;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+@SuppressWarnings("restriction")
+/**
+ * Runs the requests of the resource methods marked {@link HsmBound} (sign, create) and all the others (validate,
+ * ping, metrics, listKeys) on separate thread pools, each with its own size and queue. A slow or saturated HSM
+ * then fills only its own bulkhead and validations and health checks keep their threads and their latency.
+ *
+ * The HTTP server threads only hand each exchange over to its bulkhead and go back to accept the next one.
+ * When a bulkhead and its queue are full, the request is answered with 503 and Retry-After.
+ *
+ * @author lddecaro@amazon.com
+ */
+public class BulkheadFilter extends Filter {
+
+	private static final Logger	logger	=	LogManager.getLogger(BulkheadFilter.class);
+
+	private final List<Pattern> hsmPaths = new ArrayList<>();
+	private final Bulkhead hsm;
+	private final Bulkhead cpu;
+	private final long retryAfter;
+
+	/**
+	 * @param resource class whose {@link HsmBound} methods go to the HSM bulkhead
+	 * @param retryAfter seconds sent in the Retry-After header of rejected requests
+	 */
+	public BulkheadFilter(Class<?> resource, Bulkhead hsm, Bulkhead cpu, long retryAfter) {
+		this.hsm = hsm;
+		this.cpu = cpu;
+		this.retryAfter = retryAfter;
+		String root = resource.isAnnotationPresent(Path.class) ? resource.getAnnotation(Path.class).value() : "";
+		for (Method method : resource.getMethods()) {
+			if (method.isAnnotationPresent(HsmBound.class) && method.isAnnotationPresent(Path.class)) {
+				// "/xml" + "/sign/{key}" matches /xml/sign/<any label>
+				String template = (root + "/" + method.getAnnotation(Path.class).value()).replaceAll("/+", "/");
+				hsmPaths.add(Pattern.compile(template.replaceAll("\\{[^}]+\\}", "[^/]+") + "/?"));
+			}
+		}
+		logger.info("Requests to "+hsmPaths+" run in the HSM bulkhead");
+	}
+
+	@Override
+	public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+
+		Bulkhead bulkhead = isHsmBound(exchange.getRequestURI().getPath()) ? hsm : cpu;
+		long received = System.nanoTime();
+		try {
+			bulkhead.executor.execute(() -> {
+				// the stages of the request are timed from here, the wait in the bulkhead included
+				RequestTiming.begin(exchange.getRequestHeaders().getFirst(RequestTiming.CORRELATION_HEADER), received);
+				try {
+					chain.doFilter(exchange);
+				}catch(Throwable t) {
+					logger.error("Request "+exchange.getRequestURI()+" failed in the "+bulkhead.name+" bulkhead", t);
+					// an error the client can see, instead of a dropped connection it would take for a network failure
+					if (exchange.getResponseCode() < 0) {
+						try {
+							respond(exchange, 500, "Internal error of the signer.");
+						}catch(IOException | RuntimeException e) {
+							logger.debug("Could not answer "+exchange.getRequestURI()+" with 500. Message: "+e.getMessage());
+						}
+					}
+					exchange.close();
+				}finally {
+					RequestTiming.end();
+				}
+			});
+		}catch(RejectedExecutionException re) {
+			bulkhead.rejected.incrementAndGet();
+			logger.debug("Bulkhead "+bulkhead.name+" is full. Rejected "+exchange.getRequestMethod()+" "+exchange.getRequestURI());
+			exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+			respond(exchange, 503, "Service busy. The "+bulkhead.name+" bulkhead is full.");
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] body = message.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	boolean isHsmBound(String path) {
+		for (Pattern pattern : hsmPaths) {
+			if (pattern.matcher(path).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stops taking requests and waits up to timeout milliseconds for the running ones.
+	 */
+	public void shutdown(long timeout) throws InterruptedException {
+		hsm.executor.shutdown();
+		cpu.executor.shutdown();
+		long deadline = System.currentTimeMillis() + timeout;
+		hsm.executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		cpu.executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	public Map<String, Object> stats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put(hsm.name, hsm.stats());
+		stats.put(cpu.name, cpu.stats());
+		return stats;
+	}
+
+	@Override
+	public String description() {
+		return "Separate thread pools for HSM bound and CPU bound requests";
+	}
+
+	/**
+	 * A fixed pool of threads with a bounded queue.
+	 */
+	public static class Bulkhead {
+
+		private final String name;
+		private final ThreadPoolExecutor executor;
+		private final AtomicLong rejected = new AtomicLong();
+
+		/**
+		 * @param threads requests running at once
+		 * @param queue requests waiting for a thread
+		 */
+		public Bulkhead(String name, int threads, int queue) {
+			this.name = name;
+			this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, queue)),
+													new NamedThreadFactory("signer-"+name+"-"));
+		}
+
+		public Map<String, Object> stats() {
+			Map<String, Object> stats = new LinkedHashMap<>();
+			stats.put("threads", executor.getMaximumPoolSize());
+			stats.put("active", executor.getActiveCount());
+			stats.put("queued", executor.getQueue().size());
+			stats.put("completed", executor.getCompletedTaskCount());
+			stats.put("rejected", rejected.get());
+			return stats;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+
+/**
+ * Canonicalization of the SignedInfo and of the elements signed by Id. Exclusive c14n does not copy the
+ * namespaces inherited from the ancestors, which makes it cheaper and keeps a signed element valid when it
+ * is moved to another document. The variants without comments skip the comment nodes.
+ *
+ * @author lddecaro@amazon.com
+ */
+public enum Canonicalization {
+
+	INCLUSIVE("inclusive", CanonicalizationMethod.INCLUSIVE),
+	INCLUSIVE_WITH_COMMENTS("inclusive-comments", CanonicalizationMethod.INCLUSIVE_WITH_COMMENTS),
+	EXCLUSIVE("exclusive", CanonicalizationMethod.EXCLUSIVE),
+	EXCLUSIVE_WITH_COMMENTS("exclusive-comments", CanonicalizationMethod.EXCLUSIVE_WITH_COMMENTS);
+
+	private final String name;
+	private final String algorithm;
+
+	private Canonicalization(String name, String algorithm) {
+		this.name = name;
+		this.algorithm = algorithm;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * URI of the algorithm, as in the Algorithm attribute of ds:CanonicalizationMethod.
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * The same canonicalization without comments. Used as the transform of references to elements: a
+	 * same-document reference "#id" never includes comments, whatever the transform says, and the NF-e
+	 * layout requires the algorithm without comments there.
+	 */
+	public Canonicalization withoutComments() {
+		return this == INCLUSIVE_WITH_COMMENTS ? INCLUSIVE : this == EXCLUSIVE_WITH_COMMENTS ? EXCLUSIVE : this;
+	}
+
+	/**
+	 * @param value the name or the algorithm URI
+	 * @throws InvalidOptionException if the value is not one of the canonicalizations
+	 */
+	public static Canonicalization fromName(String value) {
+		for (Canonicalization c14n : values()) {
+			if (c14n.name.equalsIgnoreCase(value.trim()) || c14n.algorithm.equals(value.trim())) {
+				return c14n;
+			}
+		}
+		throw new InvalidOptionException("Unknown canonicalization: "+value);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+@SuppressWarnings("restriction")
+/**
+ * Decodes request bodies sent with Content-Encoding gzip or deflate. The body is inflated as it is read, by the
+ * admission control and then by the resource, so neither the compressed nor the inflated body is buffered here.
+ * It runs before the {@link AdmissionFilter}, which estimates the size of the inflated body from the compressed
+ * one, see {@link Decoded}, and counts the inflated bytes against the memory budget as they are read,
+ * so a small body that inflates to a huge one is stopped by the budget.
+ *
+ * Other encodings are answered with 415. Responses are compressed by the {@link ContentEncodingFilter}.
+ *
+ * @author lddecaro@amazon.com
+ */
+public class ContentDecodingFilter extends Filter {
+
+	private static final Logger	logger	=	LogManager.getLogger(ContentDecodingFilter.class);
+
+	@Override
+	public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+
+		String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+		if (encoding == null || "".equals(encoding.trim()) || "identity".equalsIgnoreCase(encoding.trim())) {
+			chain.doFilter(exchange);
+			return;
+		}
+		InputStream decoded;
+		switch (encoding.trim().toLowerCase()) {
+			case "gzip":
+			case "x-gzip":
+				try {
+					decoded = new GZIPInputStream(exchange.getRequestBody(), 8192);
+				} catch (IOException e) {
+					reject(exchange, 400, "Request body is not gzip. Message: "+e.getMessage());
+					return;
+				}
+				break;
+			case "deflate":
+				decoded = new InflaterInputStream(exchange.getRequestBody());
+				break;
+			default:
+				reject(exchange, 415, "Unsupported Content-Encoding "+encoding+". Use gzip or deflate.");
+				return;
+		}
+		String length = exchange.getRequestHeaders().getFirst("Content-Length");
+		long compressed;
+		try {
+			compressed = length == null ? -1 : Long.parseLong(length.trim());
+		} catch (NumberFormatException nfe) {
+			compressed = -1;
+		}
+		// the length travels with the body, attributes of the JDK exchanges are shared by all the requests of the context
+		exchange.setStreams(new Decoded(decoded, compressed), null);
+		chain.doFilter(exchange);
+	}
+
+	private static void reject(HttpExchange exchange, int status, String message) throws IOException {
+
+		logger.debug(message+" Rejected "+exchange.getRequestMethod()+" "+exchange.getRequestURI());
+		byte[] body = message.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	/**
+	 * Inflated request body.
+	 */
+	static class Decoded extends FilterInputStream {
+
+		private final long compressedLength;
+
+		private Decoded(InputStream in, long compressedLength) {
+			super(in);
+			this.compressedLength = compressedLength;
+		}
+
+		/**
+		 * @return the Content-Length of the request, -1 when unknown
+		 */
+		long getCompressedLength() {
+			return compressedLength;
+		}
+	}
+
+	@Override
+	public String description() {
+		return "Decoding of gzip and deflate request bodies";
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+/**
+ * Compresses responses with gzip or deflate, as negotiated with the Accept-Encoding header of the request.
+ * The entity is compressed as it is written to the connection, nothing is buffered on top of what the entity
+ * writer does. Responses shorter than SIGNER_COMPRESSION_MIN_BYTES are sent as they are, compressing them costs
+ * more than it saves. Streamed responses, as batch results, are always compressed and every flush of the stream
+ * still reaches the client.
+ *
+ * Request bodies are decoded by the {@link ContentDecodingFilter}.
+ *
+ * @author lddecaro@amazon.com
+ */
+public class ContentEncodingFilter implements ContainerResponseFilter, WriterInterceptor {
+
+	private static final String ENCODING_PROPERTY = ContentEncodingFilter.class.getName()+".encoding";
+
+	private final long minBytes = SignerConfig.getLong("SIGNER_COMPRESSION_MIN_BYTES", 1024);
+
+	@Override
+	public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+
+		if (!response.hasEntity() || response.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)) {
+			return;
+		}
+		response.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		String encoding = negotiate(request.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+		if (encoding != null && size(response.getEntity()) >= minBytes) {
+			request.setProperty(ENCODING_PROPERTY, encoding);
+		}
+	}
+
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+
+		Object encoding = context.getProperty(ENCODING_PROPERTY);
+		if (encoding == null) {
+			context.proceed();
+			return;
+		}
+		context.getHeaders().putSingle(HttpHeaders.CONTENT_ENCODING, encoding);
+		context.getHeaders().remove(HttpHeaders.CONTENT_LENGTH);
+		// closing the compressed stream writes the trailer, the connection itself is closed by the container
+		OutputStream connection = new Unclosed(context.getOutputStream());
+		Deflater deflater = "gzip".equals(encoding) ? null : new Deflater();
+		DeflaterOutputStream compressed = deflater == null ? new GZIPOutputStream(connection, 8192, true)
+														: new DeflaterOutputStream(connection, deflater, 8192, true);
+		context.setOutputStream(compressed);
+		try {
+			context.proceed();
+		} finally {
+			compressed.close();
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * @return gzip or deflate, the one with the highest q value, or null when the client accepts neither
+	 */
+	static String negotiate(String acceptEncoding) {
+
+		if (acceptEncoding == null) {
+			return null;
+		}
+		double gzip = -1;
+		double deflate = -1;
+		double any = -1;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parameters = coding.split(";");
+			double q = 1;
+			for (int i = 1; i < parameters.length; i++) {
+				String parameter = parameters[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						q = Double.parseDouble(parameter.substring(2).trim());
+					} catch (NumberFormatException nfe) {
+						q = 0;
+					}
+				}
+			}
+			switch (parameters[0].trim().toLowerCase()) {
+				case "gzip":
+				case "x-gzip":	gzip = q; break;
+				case "deflate":	deflate = q; break;
+				case "*":		any = q; break;
+				default:		break;
+			}
+		}
+		gzip = gzip < 0 ? any : gzip;
+		deflate = deflate < 0 ? any : deflate;
+		if (gzip <= 0 && deflate <= 0) {
+			return null;
+		}
+		return gzip >= deflate ? "gzip" : "deflate";
+	}
+
+	/**
+	 * Size of the entity in bytes, at least, or Long.MAX_VALUE for streams, whose size is not known before they are written.
+	 */
+	private static long size(Object entity) {
+		if (entity instanceof String) {
+			return ((String) entity).length();
+		}
+		if (entity instanceof byte[]) {
+			return ((byte[]) entity).length;
+		}
+		if (entity instanceof StreamingOutput || entity instanceof InputStream) {
+			return Long.MAX_VALUE;
+		}
+		// Boolean answers of the validations and the like
+		return 0;
+	}
+
+	/**
+	 * Passes writes through and leaves the stream of the container open on close.
+	 */
+	private static class Unclosed extends FilterOutputStream {
+
+		private Unclosed(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.aws.security.signer.cache.SignerInMemoryCache;
+
+/**
+ * AES-256 data keys of the XML encryption. Each label has a current data key, generated locally and wrapped
+ * with RSA-OAEP by the public key of the label, which needs no HSM. The current key is replaced after
+ * SIGNER_DATA_KEY_ROTATION_SECONDS or SIGNER_DATA_KEY_MAX_USES documents, whichever comes first.
+ *
+ * Only unwrapping takes the private key, so it is the only HSM call. Unwrapped keys are kept in a bounded
+ * cache, so decrypting a bulk of documents costs one HSM call per rotation window of the label.
+ *
+ * @author lddecaro@amazon.com
+ */
+class DataKeys {
+
+	/** Key transport of the W3C XML Encryption rsa-oaep-mgf1p algorithm. */
+	static final String WRAP_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-1AndMGF1Padding";
+
+	/** Unwraps a data key with the private key of the label. */
+	interface Unwrapper {
+		byte[] unwrap(String label, byte[] wrapped) throws Exception;
+	}
+
+	private final long rotation;
+	private final long maxUses;
+	private final Map<String, DataKey> current = new HashMap<>();
+	private final SignerInMemoryCache<String, SecretKey> unwrapped;
+	private final SecureRandom random = new SecureRandom();
+	private final AtomicLong generated		=	new AtomicLong();
+	private final AtomicLong unwraps		=	new AtomicLong();
+	private final AtomicLong cacheHits		=	new AtomicLong();
+
+	/**
+	 * @param rotation seconds a data key encrypts new documents
+	 * @param maxUses documents a data key encrypts
+	 * @param cacheTtl seconds an unwrapped data key is kept after its last use
+	 * @param cacheMaxItems unwrapped data keys kept
+	 */
+	DataKeys(long rotation, long maxUses, long cacheTtl, int cacheMaxItems) {
+		this.rotation = rotation * 1000;
+		this.maxUses = maxUses;
+		this.unwrapped = new SignerInMemoryCache<>("dataKeys", cacheTtl, Math.max(1, cacheTtl / 2), Math.max(1, cacheMaxItems));
+	}
+
+	/**
+	 * Current data key of the label, replaced by a new one when its window is over.
+	 */
+	DataKey forEncryption(String label, PublicKey publicKey) throws GeneralSecurityException {
+
+		synchronized (current) {
+			DataKey key = current.get(label);
+			if (key == null || key.uses >= maxUses || System.currentTimeMillis() >= key.expires) {
+				key = generate(label, publicKey);
+				current.put(label, key);
+			}
+			key.uses++;
+			return key;
+		}
+	}
+
+	/**
+	 * Data key wrapped for the label, unwrapped by the HSM only when it is not in the cache.
+	 */
+	SecretKey forDecryption(String label, byte[] wrapped, Unwrapper unwrapper) throws Exception {
+
+		String id = label+"/"+Base64.getEncoder().encodeToString(wrapped);
+		SecretKey key = unwrapped.get(id);
+		if (key != null) {
+			cacheHits.incrementAndGet();
+			return key;
+		}
+		key = new SecretKeySpec(unwrapper.unwrap(label, wrapped), "AES");
+		unwraps.incrementAndGet();
+		unwrapped.put(id, key);
+		return key;
+	}
+
+	/**
+	 * Stops encrypting with the current key of the label, when the key of the label changes.
+	 */
+	void rotate(String label) {
+		synchronized (current) {
+			current.remove(label);
+		}
+	}
+
+	/**
+	 * Stops encrypting with the current keys of all labels.
+	 */
+	void rotateAll() {
+		synchronized (current) {
+			current.clear();
+		}
+	}
+
+	private DataKey generate(String label, PublicKey publicKey) throws GeneralSecurityException {
+
+		KeyGenerator generator = KeyGenerator.getInstance("AES");
+		generator.init(256, random);
+		SecretKey key = generator.generateKey();
+		Cipher cipher = Cipher.getInstance(WRAP_TRANSFORMATION);
+		cipher.init(Cipher.ENCRYPT_MODE, publicKey, random);
+		byte[] wrapped = cipher.doFinal(key.getEncoded());
+		generated.incrementAndGet();
+		// the documents encrypted here are decrypted without the HSM while the key is in the cache
+		unwrapped.put(label+"/"+Base64.getEncoder().encodeToString(wrapped), key);
+		return new DataKey(key, wrapped, System.currentTimeMillis() + rotation);
+	}
+
+	Map<String, Object> stats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("generated", generated.get());
+		stats.put("unwraps", unwraps.get());
+		stats.put("cacheHits", cacheHits.get());
+		stats.put("cacheSize", unwrapped.size());
+		return stats;
+	}
+
+	static class DataKey {
+
+		private final SecretKey key;
+		private final byte[] wrapped;
+		private final long expires;
+		private long uses = 0;
+
+		private DataKey(SecretKey key, byte[] wrapped, long expires) {
+			this.key = key;
+			this.wrapped = wrapped;
+			this.expires = expires;
+		}
+
+		SecretKey getKey() {
+			return key;
+		}
+
+		/** Data key encrypted by the public key of the label. */
+		byte[] getWrapped() {
+			return wrapped;
+		}
+	}
+}
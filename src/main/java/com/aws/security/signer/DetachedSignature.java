@@ -0,0 +1,73 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+/**
+ * A signature kept apart from the document it signs. It is what /xml/sign returns with output=value and
+ * what /xml/detached/validate receives: the original document plus either the ds:Signature element returned
+ * with output=signature or the signatureValue, digestValue and canonicalization returned with output=value. The key is
+ * required when the signature does not carry its key.
+ */
+public class DetachedSignature {
+
+	private String document;
+	private String signature;
+	private String signatureValue;
+	private String digestValue;
+	private String canonicalization;
+	private String key;
+
+	public DetachedSignature(){}
+
+	public String getDocument() {
+		return document;
+	}
+	public void setDocument(String document) {
+		this.document = document;
+	}
+	public String getSignature() {
+		return signature;
+	}
+	public void setSignature(String signature) {
+		this.signature = signature;
+	}
+	public String getSignatureValue() {
+		return signatureValue;
+	}
+	public void setSignatureValue(String signatureValue) {
+		this.signatureValue = signatureValue;
+	}
+	public String getDigestValue() {
+		return digestValue;
+	}
+	public void setDigestValue(String digestValue) {
+		this.digestValue = digestValue;
+	}
+	/**
+	 * Algorithm URI of the canonicalization of the SignedInfo. Absent means inclusive with comments.
+	 */
+	public String getCanonicalization() {
+		return canonicalization;
+	}
+	public void setCanonicalization(String canonicalization) {
+		this.canonicalization = canonicalization;
+	}
+	public String getKey() {
+		return key;
+	}
+	public void setKey(String key) {
+		this.key = key;
+	}
+}
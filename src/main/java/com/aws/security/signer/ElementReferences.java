@@ -0,0 +1,283 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.xml.crypto.AlgorithmMethod;
+import javax.xml.crypto.KeySelector;
+import javax.xml.crypto.KeySelectorException;
+import javax.xml.crypto.KeySelectorResult;
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.XMLCryptoContext;
+import javax.xml.crypto.dom.DOMCryptoContext;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Elements of a document selected to be signed, each one referenced by the value of its Id attribute
+ * ("#NFe3519..."), with the enveloped and c14n transforms. Inclusive c14n is the one used by the NF-e layout.
+ *
+ * When a document has several references, their digests are computed in parallel before signing, each one
+ * on a copy of its element, and the signature receives the references already digested. This is only done
+ * when no selected element contains the place where a signature goes, since the enveloped transform would
+ * then depend on the signature being there.
+ *
+ * @author lddecaro@amazon.com
+ */
+class ElementReferences {
+
+	private static final List<String> ID_ATTRIBUTES = Arrays.asList("Id", "ID", "id");
+
+	private static final KeySelector NO_KEY = new KeySelector() {
+		public KeySelectorResult select(KeyInfo keyInfo, Purpose purpose, AlgorithmMethod method, XMLCryptoContext context) throws KeySelectorException {
+			throw new KeySelectorException("No key to select");
+		}
+	};
+
+	private final List<Element> elements;
+	private final List<String> idAttributes;
+
+	private ElementReferences(List<Element> elements, List<String> idAttributes) {
+		this.elements = elements;
+		this.idAttributes = idAttributes;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if an id or xpath selects no element or an element without Id attribute
+	 */
+	static ElementReferences select(Document doc, List<String> ids, List<String> xpaths) throws XPathExpressionException {
+
+		Set<Element> selected = new LinkedHashSet<>();
+		if (!ids.isEmpty()) {
+			Set<String> missing = new LinkedHashSet<>(ids);
+			List<Element> found = new ArrayList<>();
+			NodeList all = doc.getElementsByTagName("*");
+			for (int i = 0; i < all.getLength() && !missing.isEmpty(); i++) {
+				Element element = (Element) all.item(i);
+				String id = idAttribute(element) == null ? null : element.getAttribute(idAttribute(element));
+				if (missing.remove(id)) {
+					found.add(element);
+				}
+			}
+			if (!missing.isEmpty()) {
+				throw new IllegalArgumentException("Element not found with Id: "+missing);
+			}
+			// keep the order of the request
+			for (String id : ids) {
+				for (Element element : found) {
+					if (id.equals(element.getAttribute(idAttribute(element)))) {
+						selected.add(element);
+					}
+				}
+			}
+		}
+		for (String xpath : xpaths) {
+			NodeList nodes = (NodeList) XPathFactory.newInstance().newXPath().evaluate(xpath, doc, XPathConstants.NODESET);
+			if (nodes.getLength() == 0) {
+				throw new IllegalArgumentException("No element selected by XPath: "+xpath);
+			}
+			for (int i = 0; i < nodes.getLength(); i++) {
+				if (!(nodes.item(i) instanceof Element) || idAttribute((Element) nodes.item(i)) == null) {
+					throw new IllegalArgumentException("XPath "+xpath+" selects a node that is not an element with an Id attribute");
+				}
+				selected.add((Element) nodes.item(i));
+			}
+		}
+		List<Element> elements = new ArrayList<>(selected);
+		List<String> idAttributes = elements.stream().map(ElementReferences::idAttribute).collect(Collectors.toList());
+		return new ElementReferences(elements, idAttributes);
+	}
+
+	List<Element> getElements() {
+		return elements;
+	}
+
+	/**
+	 * Lets the context resolve the references to the selected elements.
+	 */
+	void registerIds(DOMCryptoContext context) {
+		for (int i = 0; i < elements.size(); i++) {
+			context.setIdAttributeNS(elements.get(i), null, idAttributes.get(i));
+		}
+	}
+
+	/**
+	 * Lets the context resolve a reference to any element of the document with an Id attribute.
+	 * Needed to validate documents signed by element, since there is no DTD or schema declaring Id attributes.
+	 */
+	static void registerAllIds(Document doc, DOMCryptoContext context) {
+		NodeList all = doc.getElementsByTagName("*");
+		for (int i = 0; i < all.getLength(); i++) {
+			Element element = (Element) all.item(i);
+			String attribute = idAttribute(element);
+			if (attribute != null) {
+				context.setIdAttributeNS(element, null, attribute);
+			}
+		}
+	}
+
+	/**
+	 * @param signatureParents the elements that will receive the signatures
+	 * @param c14n canonicalization transform of the references
+	 * @param parallel compute the digests of the references in parallel, when the document allows it
+	 */
+	List<Reference> newReferences(XMLSignatureFactory fac, Collection<? extends Node> signatureParents, Canonicalization c14n, boolean parallel) throws Exception {
+
+		List<Reference> references = new ArrayList<>(elements.size());
+		if (!parallel || elements.size() < 2 || !independentOf(signatureParents)) {
+			for (int i = 0; i < elements.size(); i++) {
+				references.add(fac.newReference(uri(i), fac.newDigestMethod(DigestMethod.SHA256, null), transforms(fac, c14n), null, null));
+			}
+			return references;
+		}
+		// Xerces is not safe for concurrent reads, so each task digests its own copy, made before going parallel
+		List<Element> copies = new ArrayList<>(elements.size());
+		for (Element element : elements) {
+			copies.add(copy(element));
+		}
+		List<byte[]> digests;
+		try {
+			digests = IntStream.range(0, elements.size()).parallel().mapToObj(i -> digest(i, copies.get(i), c14n)).collect(Collectors.toList());
+		}catch(IllegalStateException ie) {
+			if (ie.getCause() instanceof Exception) {
+				throw (Exception) ie.getCause();
+			}
+			throw ie;
+		}
+		for (int i = 0; i < elements.size(); i++) {
+			references.add(fac.newReference(uri(i), fac.newDigestMethod(DigestMethod.SHA256, null), transforms(fac, c14n), null, null, digests.get(i)));
+		}
+		return references;
+	}
+
+	/**
+	 * Digest of the element as a validator computes it, calculated by validating a probe signature created in
+	 * the document of the copy and never attached to it. The enveloped transform is left out of the probe, it removes nothing while no
+	 * signature is inside the element. Runs on any thread, the copy is not shared.
+	 */
+	private byte[] digest(int i, Element copy, Canonicalization c14n) {
+		try {
+			Element probe = probe(copy.getOwnerDocument(), uri(i), c14n);
+			// the probe only needs the calculated digest, no key is ever selected
+			DOMValidateContext context = new DOMValidateContext(NO_KEY, probe);
+			context.setIdAttributeNS(copy, null, idAttributes.get(i));
+			XMLSignature signature = XmlFactories.signatureFactory().unmarshalXMLSignature(context);
+			Reference reference = (Reference) signature.getSignedInfo().getReferences().get(0);
+			reference.validate(context);
+			return reference.getCalculatedDigestValue();
+		}catch(XMLSignatureException | MarshalException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Copy of the element in a document of its own, below shallow copies of its ancestors so the namespaces
+	 * and xml:* attributes in scope canonicalize as in the original document.
+	 */
+	private static Element copy(Element element) {
+
+		Document doc = element.getOwnerDocument().getImplementation().createDocument(null, null, null);
+		Node parent = doc;
+		List<Node> ancestors = new ArrayList<>();
+		for (Node node = element.getParentNode(); node instanceof Element; node = node.getParentNode()) {
+			ancestors.add(0, node);
+		}
+		for (Node ancestor : ancestors) {
+			parent = parent.appendChild(doc.importNode(ancestor, false));
+		}
+		return (Element) parent.appendChild(doc.importNode(element, true));
+	}
+
+	/**
+	 * An unsigned ds:Signature with a single reference to uri and the c14n transform.
+	 */
+	private static Element probe(Document doc, String uri, Canonicalization c14n) {
+
+		Element signature = dsig(doc, null, "Signature");
+		Element signedInfo = dsig(doc, signature, "SignedInfo");
+		dsig(doc, signedInfo, "CanonicalizationMethod").setAttributeNS(null, "Algorithm", c14n.getAlgorithm());
+		dsig(doc, signedInfo, "SignatureMethod").setAttributeNS(null, "Algorithm", XMLSigner.RSA_SHA256_W3C_ID);
+		Element reference = dsig(doc, signedInfo, "Reference");
+		reference.setAttributeNS(null, "URI", uri);
+		dsig(doc, dsig(doc, reference, "Transforms"), "Transform").setAttributeNS(null, "Algorithm", c14n.getAlgorithm());
+		dsig(doc, reference, "DigestMethod").setAttributeNS(null, "Algorithm", DigestMethod.SHA256);
+		dsig(doc, reference, "DigestValue");
+		dsig(doc, signature, "SignatureValue");
+		return signature;
+	}
+
+	private static Element dsig(Document doc, Element parent, String name) {
+		Element element = doc.createElementNS(XMLSignature.XMLNS, "ds:"+name);
+		if (parent != null) {
+			parent.appendChild(element);
+		}
+		return element;
+	}
+
+	private boolean independentOf(Collection<? extends Node> signatureParents) {
+		for (Element element : elements) {
+			for (Node parent : signatureParents) {
+				for (Node node = parent; node != null; node = node.getParentNode()) {
+					if (node == element) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	private String uri(int i) {
+		return "#"+elements.get(i).getAttribute(idAttributes.get(i));
+	}
+
+	private static List<Transform> transforms(XMLSignatureFactory fac, Canonicalization c14n) throws GeneralSecurityException {
+		return Arrays.asList(fac.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null),
+							fac.newTransform(c14n.getAlgorithm(), (TransformParameterSpec) null));
+	}
+
+	private static String idAttribute(Element element) {
+		for (String attribute : ID_ATTRIBUTES) {
+			if (element.hasAttributeNS(null, attribute)) {
+				return attribute;
+			}
+		}
+		return null;
+	}
+}
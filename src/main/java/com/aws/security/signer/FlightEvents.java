@@ -0,0 +1,113 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The JFR event classes behind {@link SignerEvents}. Only used once SignerEvents found JFR in the JVM.
+ *
+ * @author lddecaro@amazon.com
+ */
+final class FlightEvents {
+
+	private FlightEvents() {}
+
+	static SignerEvents.Scope begin(SignerEvents.Type type, String label, long bytes) {
+
+		TimedEvent event;
+		switch (type) {
+			case SIGN:				event = new Sign(); break;
+			case VALIDATE:			event = new Validate(); break;
+			case KEY_LOAD:			event = new KeyLoad(); break;
+			default:				event = new KeystorePersist(); break;
+		}
+		if (!event.isEnabled()) {
+			return SignerEvents.NONE;
+		}
+		event.label = label;
+		event.bytes = bytes;
+		event.begin();
+		return event;
+	}
+
+	static void cache(String cache, Object key, String action) {
+		Cache event = new Cache();
+		if (event.isEnabled()) {
+			event.cache = cache;
+			event.key = String.valueOf(key);
+			event.action = action;
+			event.commit();
+		}
+	}
+
+	@Category("AWS Signer")
+	@StackTrace(false)
+	abstract static class TimedEvent extends Event implements SignerEvents.Scope {
+
+		@Label("Key Label")
+		String label;
+
+		@Label("Size")
+		@DataAmount
+		long bytes;
+
+		@Label("Outcome")
+		String outcome;
+
+		@Override
+		public void end(String outcome) {
+			this.outcome = outcome;
+			commit();
+		}
+	}
+
+	@Name("com.aws.signer.Sign")
+	@Label("Sign XML")
+	static class Sign extends TimedEvent {}
+
+	@Name("com.aws.signer.Validate")
+	@Label("Validate XML")
+	static class Validate extends TimedEvent {}
+
+	@Name("com.aws.signer.KeyLoad")
+	@Label("Load Key from Keystore")
+	static class KeyLoad extends TimedEvent {}
+
+	@Name("com.aws.signer.KeystorePersist")
+	@Label("Persist Keystore")
+	static class KeystorePersist extends TimedEvent {}
+
+	@Name("com.aws.signer.Cache")
+	@Label("Cache Load or Eviction")
+	@Category("AWS Signer")
+	@StackTrace(false)
+	static class Cache extends Event {
+
+		@Label("Cache")
+		String cache;
+
+		@Label("Key")
+		String key;
+
+		@Label("Action")
+		String action;
+	}
+}
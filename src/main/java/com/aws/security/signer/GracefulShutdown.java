@@ -0,0 +1,76 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Shutdown hook of the service, stopping it in order so requests in flight are answered instead of cut off,
+ * as on every rolling deploy: /xml/ready stops answering ready while requests are still served for
+ * SIGNER_DRAIN_GRACE seconds, so the load balancer deregisters the container before connections are refused. Then
+ * the HTTP engine stops accepting connections and waits for the requests in flight, queued ones included, the
+ * bulkheads stop, and only then the signer persists pending keystore writes and logs out of the HSM. The grace
+ * period and the requests get SIGNER_DRAIN_TIMEOUT seconds in all, the connections of the ones still running after
+ * that are closed. Logging is stopped last, so the log4j2 shutdown
+ * hook, which is disabled, cannot stop it while the service is still logging how it went down.
+ *
+ * @author lddecaro@amazon.com
+ */
+class GracefulShutdown implements Runnable {
+
+	private static final Logger	logger	=	LogManager.getLogger(GracefulShutdown.class);
+
+	private final HttpEngine engine;
+	private final BulkheadFilter bulkheads;
+	private final XMLSigner signer;
+	private final long timeout;
+	private final long grace;
+
+	/**
+	 * @param timeout milliseconds given to the requests in flight
+	 * @param grace milliseconds, within the timeout, the server keeps accepting requests while not ready
+	 */
+	GracefulShutdown(HttpEngine engine, BulkheadFilter bulkheads, XMLSigner signer, long timeout, long grace) {
+		this.engine = engine;
+		this.bulkheads = bulkheads;
+		this.signer = signer;
+		this.timeout = timeout;
+		this.grace = Math.min(grace, timeout);
+	}
+
+	@Override
+	public void run() {
+
+		long start = System.currentTimeMillis();
+		long deadline = start + timeout;
+		logger.info("Endpoint shutting down, draining requests for up to "+timeout+" ms");
+		Readiness.set(Readiness.State.DRAINING);
+		try {
+			//the load balancer needs a few failed readiness checks to deregister the container
+			Thread.sleep(grace);
+			engine.stop(Math.max(0, deadline - System.currentTimeMillis()));
+			bulkheads.shutdown(Math.max(0, deadline - System.currentTimeMillis()));
+		}catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}catch(RuntimeException e) {
+			logger.error("Could not drain the requests. Message: "+e.getMessage());
+		}
+		logger.info("Requests drained in "+(System.currentTimeMillis() - start)+" ms");
+		signer.close(Math.max(0, deadline - System.currentTimeMillis()));
+		logger.info("Endpoint shut down in "+(System.currentTimeMillis() - start)+" ms");
+		LogManager.shutdown();
+	}
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+
+@SuppressWarnings("restriction")
+/**
+ * A suspended Grizzly request seen as a JDK HttpExchange, as the filters and the Jersey JDK container expect it.
+ * The response headers are copied to Grizzly by sendResponseHeaders and closing the exchange, or its response body,
+ * completes the response and resumes the request.
+ *
+ * @author lddecaro@amazon.com
+ */
+class GrizzlyExchange extends HttpExchange {
+
+	private final Request request;
+	private final Response response;
+	private final HttpContext context;
+	private final Headers requestHeaders = new Headers();
+	private final Headers responseHeaders = new Headers();
+	private final Map<String, Object> attributes = new HashMap<>();
+	private InputStream in;
+	private OutputStream out;
+	private int status = -1;
+	private boolean closed = false;
+
+	GrizzlyExchange(Request request, Response response, HttpContext context) {
+		this.request = request;
+		this.response = response;
+		this.context = context;
+		for (String name : request.getHeaderNames()) {
+			for (String value : request.getHeaders(name)) {
+				requestHeaders.add(name, value);
+			}
+		}
+		this.in = request.getInputStream();
+		this.out = new FilterOutputStream(response.getOutputStream()) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() {
+				GrizzlyExchange.this.close();
+			}
+		};
+	}
+
+	@Override
+	public Headers getRequestHeaders() {
+		return requestHeaders;
+	}
+
+	@Override
+	public Headers getResponseHeaders() {
+		return responseHeaders;
+	}
+
+	@Override
+	public URI getRequestURI() {
+		String query = request.getQueryString();
+		return URI.create(query == null ? request.getRequestURI() : request.getRequestURI()+"?"+query);
+	}
+
+	@Override
+	public String getRequestMethod() {
+		return request.getMethod().getMethodString();
+	}
+
+	@Override
+	public HttpContext getHttpContext() {
+		return context;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (status < 0) {
+				response.setStatus(500);
+			}
+			response.getOutputStream().close();
+		} catch (IOException e) {
+			// the client is gone, the connection is closed by Grizzly
+		} finally {
+			response.resume();
+		}
+	}
+
+	@Override
+	public InputStream getRequestBody() {
+		return in;
+	}
+
+	@Override
+	public OutputStream getResponseBody() {
+		return out;
+	}
+
+	/**
+	 * @param length as in the JDK: above 0 the Content-Length, 0 a chunked body and -1 no body
+	 */
+	@Override
+	public void sendResponseHeaders(int code, long length) throws IOException {
+		if (status >= 0) {
+			throw new IOException("Headers already sent");
+		}
+		status = code;
+		response.setStatus(code);
+		for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+			if ("Content-Length".equalsIgnoreCase(header.getKey())) {
+				continue;
+			}
+			for (String value : header.getValue()) {
+				if ("Content-Type".equalsIgnoreCase(header.getKey())) {
+					response.setContentType(value);
+				}else {
+					response.addHeader(header.getKey(), value);
+				}
+			}
+		}
+		if (length > 0) {
+			response.setContentLengthLong(length);
+		}else if (length < 0) {
+			response.setContentLength(0);
+		}
+	}
+
+	@Override
+	public InetSocketAddress getRemoteAddress() {
+		return new InetSocketAddress(request.getRemoteAddr(), request.getRemotePort());
+	}
+
+	@Override
+	public int getResponseCode() {
+		return status;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return new InetSocketAddress(request.getLocalAddr(), request.getLocalPort());
+	}
+
+	@Override
+	public String getProtocol() {
+		return request.getProtocol().getProtocolString();
+	}
+
+	@Override
+	public Object getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	@Override
+	public void setAttribute(String name, Object value) {
+		attributes.put(name, value);
+	}
+
+	@Override
+	public void setStreams(InputStream i, OutputStream o) {
+		if (i != null) {
+			in = i;
+		}
+		if (o != null) {
+			out = o;
+		}
+	}
+
+	@Override
+	public HttpPrincipal getPrincipal() {
+		return null;
+	}
+
+	/**
+	 * The context of the exchanges, only its path is read by the Jersey container.
+	 */
+	static HttpContext context(String path) {
+		return new HttpContext() {
+
+			private final Map<String, Object> attributes = new HashMap<>();
+
+			@Override
+			public HttpHandler getHandler() {
+				return null;
+			}
+
+			@Override
+			public void setHandler(HttpHandler handler) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public String getPath() {
+				return path;
+			}
+
+			@Override
+			public HttpServer getServer() {
+				return null;
+			}
+
+			@Override
+			public Map<String, Object> getAttributes() {
+				return attributes;
+			}
+
+			@Override
+			public List<Filter> getFilters() {
+				return Collections.emptyList();
+			}
+
+			@Override
+			public Authenticator setAuthenticator(Authenticator auth) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public Authenticator getAuthenticator() {
+				return null;
+			}
+		};
+	}
+}
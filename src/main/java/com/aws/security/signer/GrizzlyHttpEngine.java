@@ -0,0 +1,134 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.ConnectionProbe;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+
+@SuppressWarnings("restriction")
+/**
+ * Grizzly NIO engine. SIGNER_HTTP_IO_THREADS selector threads serve the connections, so keep alive and pipelined
+ * requests do not hold a thread each while they are idle, and SIGNER_HTTP_THREADS worker threads hand the requests
+ * over to the filters, as the threads of the JDK server do. Connections beyond SIGNER_HTTP_MAX_CONNECTIONS are closed
+ * as soon as they are accepted, and idle ones after SIGNER_HTTP_KEEP_ALIVE_SECONDS.
+ *
+ * Each request is adapted to a JDK HttpExchange, see {@link GrizzlyExchange}, and suspended until the exchange is
+ * closed, so it goes through the same filters and the same Jersey container as with the JDK engine, and the worker
+ * thread is free as soon as the bulkhead took the request.
+ *
+ * @author lddecaro@amazon.com
+ */
+class GrizzlyHttpEngine implements HttpEngine {
+
+	private static final Logger	logger	=	LogManager.getLogger(GrizzlyHttpEngine.class);
+
+	private final Set<Connection<?>> connections = ConcurrentHashMap.newKeySet();
+	private final AtomicLong refused = new AtomicLong();
+	private HttpServer server;
+
+	@Override
+	public void start(int port, String path, HttpHandler handler, List<Filter> filters) throws IOException {
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		NetworkListener listener = new NetworkListener("signer", NetworkListener.DEFAULT_NETWORK_HOST, port);
+		TCPNIOTransport transport = listener.getTransport();
+		transport.setSelectorRunnersCount(SignerConfig.getInt("SIGNER_HTTP_IO_THREADS", cores));
+		int workers = SignerConfig.getInt("SIGNER_HTTP_THREADS", cores);
+		transport.setWorkerThreadPoolConfig(ThreadPoolConfig.defaultConfig().setPoolName("signer-http").setCorePoolSize(workers).setMaxPoolSize(workers));
+		listener.getKeepAlive().setIdleTimeoutInSeconds(SignerConfig.getInt("SIGNER_HTTP_KEEP_ALIVE_SECONDS", 30));
+		//no limit of requests per connection, clients keep their connections as long as they are used
+		listener.getKeepAlive().setMaxRequestsCount(-1);
+		final int maxConnections = SignerConfig.getInt("SIGNER_HTTP_MAX_CONNECTIONS", 10000);
+		transport.getConnectionMonitoringConfig().addProbes(new ConnectionProbe.Adapter() {
+			@Override
+			public void onAcceptEvent(Connection serverConnection, Connection clientConnection) {
+				connections.add(clientConnection);
+				if (connections.size() > maxConnections) {
+					refused.incrementAndGet();
+					logger.debug("Closed connection from "+clientConnection.getPeerAddress()+", "+maxConnections+" connections are open");
+					clientConnection.closeSilently();
+				}
+			}
+
+			@Override
+			public void onCloseEvent(Connection connection) {
+				connections.remove(connection);
+			}
+		});
+		SignerMetrics.register("connections", () -> {
+			Map<String, Object> stats = new LinkedHashMap<>();
+			stats.put("open", connections.size());
+			stats.put("max", maxConnections);
+			stats.put("refused", refused.get());
+			return stats;
+		});
+
+		final HttpContext context = GrizzlyExchange.context(path);
+		server = new HttpServer();
+		server.addListener(listener);
+		server.getServerConfiguration().addHttpHandler(new org.glassfish.grizzly.http.server.HttpHandler() {
+			@Override
+			public void service(Request request, Response response) throws Exception {
+				response.suspend();
+				GrizzlyExchange exchange = new GrizzlyExchange(request, response, context);
+				try {
+					new Filter.Chain(filters, handler).doFilter(exchange);
+				}catch(IOException | RuntimeException e) {
+					logger.error("Request "+request.getRequestURI()+" failed", e);
+					exchange.close();
+				}
+			}
+		}, path);
+		server.start();
+		logger.info("Grizzly engine listening on port "+port);
+	}
+
+	@Override
+	public void stop(long timeout) {
+		//suspended requests count as in flight until their exchange is closed
+		try {
+			server.shutdown(timeout, TimeUnit.MILLISECONDS).get(timeout, TimeUnit.MILLISECONDS);
+			return;
+		}catch(TimeoutException | ExecutionException e) {
+			logger.info("Requests still in flight after "+timeout+" ms, closing their connections");
+		}catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		server.shutdownNow();
+	}
+}
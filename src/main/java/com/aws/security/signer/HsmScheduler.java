@@ -0,0 +1,343 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+/**
+ * Shares the HSM between key labels. At most SIGNER_HSM_CONCURRENCY operations run on the HSM at once and each
+ * label waits in its own queue. When the HSM has room, the next operation comes from the label that received the
+ * least service relative to its weight (start time fair queuing), so a bulk job on one label only slows itself down.
+ *
+ * A label can be tuned with SIGNER_HSM_WEIGHT_{label} (share of the HSM, default 1), SIGNER_HSM_MAX_CONCURRENT_{label}
+ * (operations running at once, 0 is no cap) and SIGNER_HSM_RATE_{label} (operations per second, 0 is no cap).
+ * An operation that waits longer than SIGNER_HSM_QUEUE_TIMEOUT_MS fails with {@link BusyException}.
+ *
+ * Only labels with operations waiting or running have a queue, so a service with many thousands of labels pays for
+ * the few that are busy: a queue is dropped once it is idle, and the queues with operations waiting are kept in a
+ * heap ordered by virtual time. The counters of each label, operations granted and timed out and the time they
+ * waited, outlive its queue in a map of the labels used most recently, bounded by statsLabels.
+ *
+ * @author lddecaro@amazon.com
+ */
+public class HsmScheduler {
+
+	private final int capacity;
+	private final long queueTimeout;
+	private final Map<String, KeyQueue> queues = new HashMap<>();
+	private final Map<String, KeyStats> keyStats;
+	private final PriorityQueue<KeyQueue> backlog = new PriorityQueue<>(Comparator.comparingDouble((KeyQueue queue) -> queue.virtualTime));
+	private int inFlight = 0;
+	private double virtualTime = 0;
+	private long granted = 0;
+	private long timedOut = 0;
+	private long queueTime = 0;
+	private long maxQueueTime = 0;
+
+	/**
+	 * @param capacity operations running on the HSM at once
+	 * @param queueTimeout milliseconds an operation waits for its turn
+	 * @param statsLabels labels whose counters are kept, the least recently used are forgotten beyond it
+	 */
+	public HsmScheduler(int capacity, long queueTimeout, int statsLabels) {
+		this.capacity = capacity;
+		this.queueTimeout = queueTimeout;
+		this.keyStats = new LinkedHashMap<String, KeyStats>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, KeyStats> eldest) {
+				return size() > statsLabels;
+			}
+		};
+	}
+
+	/**
+	 * Runs the operation on the calling thread once it is the turn of the label.
+	 *
+	 * @throws BusyException if the turn does not come within the queue timeout
+	 */
+	public <T> T run(String label, Callable<T> operation) throws Exception {
+
+		Ticket ticket = new Ticket();
+		KeyQueue queue;
+		synchronized (this) {
+			queue = queues.get(label);
+			if (queue == null) {
+				// an idle label starts where the others are, it does not bank service it did not use
+				queue = new KeyQueue(label, virtualTime);
+				queues.put(label, queue);
+			}
+			if (queue.waiting.isEmpty()) {
+				backlog.add(queue);
+			}
+			queue.waiting.add(ticket);
+			// the label is reported as waiting, and is the most recently used, before its turn comes
+			keyStats(label);
+			long deadline = ticket.enqueued + queueTimeout;
+			try {
+				dispatch();
+				while (!ticket.granted) {
+					long now = System.currentTimeMillis();
+					if (now >= deadline) {
+						timedOut++;
+						keyStats(label).timedOut++;
+						throw new BusyException("HSM busy. Timed out waiting for the turn of "+label);
+					}
+					wait(Math.max(1, Math.min(deadline, nextToken()) - now));
+					dispatch();
+				}
+			} finally {
+				if (!ticket.granted) {
+					queue.waiting.remove(ticket);
+					if (queue.waiting.isEmpty()) {
+						backlog.remove(queue);
+					}
+					dropIfIdle(queue);
+				}
+			}
+		}
+		try {
+			return operation.call();
+		} finally {
+			synchronized (this) {
+				queue.inFlight--;
+				inFlight--;
+				dropIfIdle(queue);
+				dispatch();
+			}
+		}
+	}
+
+	/**
+	 * Grants the HSM to waiting operations while it has room, label with the least virtual time first. Labels
+	 * held back by their concurrency or rate cap are set aside and put back in the heap.
+	 */
+	private void dispatch() {
+
+		boolean anyGranted = false;
+		long now = System.currentTimeMillis();
+		List<KeyQueue> held = null;
+		while (inFlight < capacity && !backlog.isEmpty()) {
+			KeyQueue next = backlog.poll();
+			if (!next.eligible(now)) {
+				if (held == null) {
+					held = new ArrayList<>();
+				}
+				held.add(next);
+				continue;
+			}
+			Ticket ticket = next.waiting.poll();
+			ticket.granted = true;
+			virtualTime = next.virtualTime;
+			next.virtualTime += 1.0 / next.weight;
+			next.take();
+			next.inFlight++;
+			if (!next.waiting.isEmpty()) {
+				backlog.add(next);
+			}
+			long waited = now - ticket.enqueued;
+			granted++;
+			queueTime += waited;
+			maxQueueTime = Math.max(maxQueueTime, waited);
+			keyStats(next.label).granted(waited);
+			inFlight++;
+			anyGranted = true;
+		}
+		if (held != null) {
+			backlog.addAll(held);
+		}
+		if (anyGranted) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Time when a rate capped label gets its next token, so waiting operations wake up for it.
+	 */
+	private long nextToken() {
+		long next = Long.MAX_VALUE;
+		for (KeyQueue queue : backlog) {
+			if (queue.rate > 0 && queue.tokens < 1) {
+				next = Math.min(next, queue.nextToken());
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * A rate capped label is kept until its tokens are refilled, a new queue would start with all of them.
+	 */
+	private void dropIfIdle(KeyQueue queue) {
+		if (queue.waiting.isEmpty() && queue.inFlight == 0 && queue.refilled(System.currentTimeMillis())) {
+			queues.remove(queue.label);
+		}
+	}
+
+	private KeyStats keyStats(String label) {
+		KeyStats stats = keyStats.get(label);
+		if (stats == null) {
+			stats = new KeyStats();
+			keyStats.put(label, stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * Totals since the start, and for each label used recently its counters and, when it is busy, the operations
+	 * waiting and running.
+	 */
+	public synchronized Map<String, Object> stats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("capacity", capacity);
+		stats.put("inFlight", inFlight);
+		stats.put("granted", granted);
+		stats.put("timedOut", timedOut);
+		stats.put("avgQueueTimeMs", granted == 0 ? 0 : queueTime / granted);
+		stats.put("maxQueueTimeMs", maxQueueTime);
+		stats.put("backlogged", backlog.size());
+		Map<String, Object> keys = new TreeMap<>();
+		for (Map.Entry<String, KeyStats> entry : keyStats.entrySet()) {
+			KeyQueue queue = queues.get(entry.getKey());
+			keys.put(entry.getKey(), entry.getValue().stats(queue));
+		}
+		stats.put("keys", keys);
+		return stats;
+	}
+
+	/**
+	 * The HSM did not have room for the label within the queue timeout.
+	 */
+	public static class BusyException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		public BusyException(String message) {
+			super(message);
+		}
+	}
+
+	private static class Ticket {
+		private final long enqueued = System.currentTimeMillis();
+		private boolean granted = false;
+	}
+
+	private static class KeyStats {
+
+		private long granted = 0;
+		private long timedOut = 0;
+		private long queueTime = 0;
+		private long maxQueueTime = 0;
+
+		private void granted(long waited) {
+			granted++;
+			queueTime += waited;
+			maxQueueTime = Math.max(maxQueueTime, waited);
+		}
+
+		/**
+		 * @param queue of the label, null when it is idle
+		 */
+		private Map<String, Object> stats(KeyQueue queue) {
+			Map<String, Object> stats = queue == null ? new LinkedHashMap<>() : queue.stats();
+			if (queue == null) {
+				stats.put("waiting", 0);
+				stats.put("inFlight", 0);
+			}
+			stats.put("granted", granted);
+			stats.put("timedOut", timedOut);
+			stats.put("avgQueueTimeMs", granted == 0 ? 0 : queueTime / granted);
+			stats.put("maxQueueTimeMs", maxQueueTime);
+			return stats;
+		}
+	}
+
+	private static class KeyQueue {
+
+		private final String label;
+		private final Deque<Ticket> waiting = new ArrayDeque<>();
+		private final int weight;
+		private final int maxConcurrent;
+		private final long rate;
+		private double virtualTime;
+		private double tokens;
+		private long refilled = System.currentTimeMillis();
+		private int inFlight = 0;
+
+		private KeyQueue(String label, double virtualTime) {
+			this.label = label;
+			this.weight = Math.max(1, SignerConfig.getInt("SIGNER_HSM_WEIGHT_"+label, 1));
+			this.maxConcurrent = SignerConfig.getInt("SIGNER_HSM_MAX_CONCURRENT_"+label, 0);
+			this.rate = SignerConfig.getLong("SIGNER_HSM_RATE_"+label, 0);
+			this.virtualTime = virtualTime;
+			this.tokens = rate;
+		}
+
+		private boolean eligible(long now) {
+			if (maxConcurrent > 0 && inFlight >= maxConcurrent) {
+				return false;
+			}
+			if (rate > 0) {
+				refill(now);
+				return tokens >= 1;
+			}
+			return true;
+		}
+
+		private void refill(long now) {
+			// at most one second worth of operations is saved up
+			tokens = Math.min(rate, tokens + (now - refilled) * rate / 1000.0);
+			refilled = now;
+		}
+
+		private boolean refilled(long now) {
+			if (rate > 0) {
+				refill(now);
+				return tokens >= rate;
+			}
+			return true;
+		}
+
+		private void take() {
+			if (rate > 0) {
+				tokens--;
+			}
+		}
+
+		private long nextToken() {
+			return refilled + (long) Math.ceil((1 - tokens) * 1000.0 / rate);
+		}
+
+		private Map<String, Object> stats() {
+			Map<String, Object> stats = new LinkedHashMap<>();
+			stats.put("weight", weight);
+			stats.put("maxConcurrent", maxConcurrent);
+			stats.put("rate", rate);
+			stats.put("waiting", waiting.size());
+			stats.put("inFlight", inFlight);
+			return stats;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.io.ByteArrayOutputStream;
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.SignatureSpi;
+
+import javax.xml.crypto.dsig.XMLSignContext;
+
+/**
+ * Provider given to the XML signature of a label so its RSA operation goes through the {@link HsmScheduler}.
+ * The SignedInfo is buffered as it is canonicalized and handed to the HSM, through the Signature of the
+ * provider of the key, only when it is the turn of the label. The canonicalization and the digests of the
+ * references are computed outside of the scheduler, they take no HSM capacity. The Signature objects handed the
+ * SignedInfo come from the {@link SignaturePool}, already initialised with the key.
+ *
+ * @author lddecaro@amazon.com
+ */
+class HsmSignatureProvider extends Provider {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Property of the sign context read by the JSR 105 implementation of the JDK to get the Signature. */
+	private static final String SIGNATURE_PROVIDER = "org.jcp.xml.dsig.internal.dom.SignatureProvider";
+
+	private final transient String label;
+	private final transient HsmScheduler scheduler;
+	private final transient SignaturePool signatures;
+
+	HsmSignatureProvider(String label, HsmScheduler scheduler, SignaturePool signatures) {
+		super("SignerHSM-"+label, 1.0, "Signatures of the label "+label+" scheduled on the HSM");
+		this.label = label;
+		this.scheduler = scheduler;
+		this.signatures = signatures;
+		putService(new Service(this, "Signature", "SHA256withRSA", ScheduledSignature.class.getName(), null, null) {
+			@Override
+			public Object newInstance(Object constructorParameter) {
+				return new ScheduledSignature();
+			}
+		});
+	}
+
+	/**
+	 * Makes the signatures created with the context use this provider.
+	 */
+	void useIn(XMLSignContext context) {
+		context.setProperty(SIGNATURE_PROVIDER, this);
+	}
+
+	private class ScheduledSignature extends SignatureSpi {
+
+		private final ByteArrayOutputStream data = new ByteArrayOutputStream(1024);
+		private PrivateKey key;
+
+		@Override
+		protected void engineInitSign(PrivateKey privateKey) throws InvalidKeyException {
+			this.key = privateKey;
+			data.reset();
+		}
+
+		@Override
+		protected void engineInitVerify(PublicKey publicKey) throws InvalidKeyException {
+			throw new InvalidKeyException("Only signing is scheduled on the HSM");
+		}
+
+		@Override
+		protected void engineUpdate(byte b) throws SignatureException {
+			data.write(b);
+		}
+
+		@Override
+		protected void engineUpdate(byte[] b, int off, int len) throws SignatureException {
+			data.write(b, off, len);
+		}
+
+		@Override
+		protected byte[] engineSign() throws SignatureException {
+			long queued = System.nanoTime();
+			try {
+				return scheduler.run(label, () -> {
+					RequestTiming.record("hsm-queue", queued);
+					long start = System.nanoTime();
+					Signature signature = signatures.forSigning(label, key);
+					signature.update(data.toByteArray());
+					byte[] value = signature.sign();
+					signatures.release(label, true);
+					RequestTiming.record("hsm", start);
+					return value;
+				});
+			}catch(HsmScheduler.BusyException | SignatureException e) {
+				throw e;
+			}catch(Exception e) {
+				throw new SignatureException(e.getMessage(), e);
+			}finally {
+				data.reset();
+			}
+		}
+
+		@Override
+		protected boolean engineVerify(byte[] sigBytes) throws SignatureException {
+			throw new SignatureException("Only signing is scheduled on the HSM");
+		}
+
+		@Override
+		@Deprecated
+		protected void engineSetParameter(String param, Object value) throws InvalidParameterException {
+			throw new InvalidParameterException("No parameters");
+		}
+
+		@Override
+		@Deprecated
+		protected Object engineGetParameter(String param) throws InvalidParameterException {
+			throw new InvalidParameterException("No parameters");
+		}
+	}
+}
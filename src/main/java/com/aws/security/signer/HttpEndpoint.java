@@ -16,11 +16,12 @@ package com.aws.security.signer;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import javax.ws.rs.core.Application;
@@ -32,8 +33,8 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.glassfish.jersey.server.ResourceConfig;
 
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpHandler;
-import com.sun.net.httpserver.HttpServer;
 
 @SuppressWarnings("restriction")
 /**
@@ -46,20 +47,60 @@ public class HttpEndpoint extends ResourceConfig {
 	private static final Logger	logger	=	LogManager.getLogger(HttpEndpoint.class);
 	public HttpEndpoint () {	}
 	
-	HttpServer startServer() throws IOException, UnknownHostException {
+	HttpEngine startServer() throws IOException, UnknownHostException {
 		
-		//creates a new server listening on port 8080
-		final HttpServer signerServer = HttpServer.create(new InetSocketAddress(getBaseURI().getPort()), 0);
-		//create a shutdown hook to stop application when ^C is hit
-		Runtime.getRuntime().addShutdownHook(new Thread(() -> {  signerServer.stop(0); })); 
+		//requests beyond the limits are rejected with 429 instead of piling up, with lanes of their own in each bulkhead
+		AdmissionFilter.Lanes hsmLanes = lanes("HSM");
+		AdmissionFilter.Lanes cpuLanes = lanes("CPU");
+		//requests blocked on the HSM must not take the threads of validations and health checks
+		int bulkheadQueue = SignerConfig.getInt("SIGNER_BULKHEAD_QUEUE", 64);
+		BulkheadFilter bulkheads = new BulkheadFilter(XMLSigner.class,
+													new BulkheadFilter.Bulkhead("hsm", SignerConfig.getInt("SIGNER_HSM_THREADS", hsmLanes.requiredThreads()), bulkheadQueue),
+													new BulkheadFilter.Bulkhead("cpu", SignerConfig.getInt("SIGNER_CPU_THREADS", cpuLanes.requiredThreads()), bulkheadQueue),
+													SignerConfig.getLong("SIGNER_RETRY_AFTER", 1));
+		SignerMetrics.register("bulkheads", bulkheads::stats);
+		AdmissionFilter.MemoryBudget budget = new AdmissionFilter.MemoryBudget(SignerConfig.getLong("SIGNER_MEMORY_BUDGET_BYTES", Runtime.getRuntime().maxMemory() / 2),
+																			SignerConfig.getLong("SIGNER_MEMORY_FACTOR", 10));
+		AdmissionFilter admission = new AdmissionFilter(hsmLanes, cpuLanes, bulkheads::isHsmBound, budget, SignerConfig.getLong("SIGNER_LARGE_DOCUMENT_BYTES", 1024 * 1024),
+														SignerConfig.getLong("SIGNER_RETRY_AFTER", 1));
+		SignerMetrics.register("admission", admission::stats);
+		//logs into the HSM and loads the keystore before the server listens
+		XMLSigner signer = new XMLSigner();
+		signer.startKeyPool();
 		//create a handler wrapping the application
-		HttpHandler handler = RuntimeDelegate.getInstance().createEndpoint(new SignerApplication(), HttpHandler.class);
-		// map handler to server root
-		signerServer.createContext(getBaseURI().getPath(), handler);
-		//start the server
-		signerServer.start();
+		HttpHandler handler = RuntimeDelegate.getInstance().createEndpoint(new SignerApplication(signer), HttpHandler.class);
+		//compressed bodies are inflated as they are read, so admission counts the inflated bytes against the budget
+		List<Filter> filters = Arrays.asList(bulkheads, new ContentDecodingFilter(), admission);
+		//the JDK HttpServer (jdk) or Grizzly (grizzly), listening on port 8080
+		final HttpEngine engine = HttpEngine.fromName(SignerConfig.getString("SIGNER_HTTP_ENGINE", "jdk"));
+		engine.start(getBaseURI().getPort(), getBaseURI().getPath(), handler, filters);
+		//create a shutdown hook to stop application when ^C is hit, or by the container on a deploy
+		Runtime.getRuntime().addShutdownHook(new Thread(new GracefulShutdown(engine, bulkheads, signer, SignerConfig.getLong("SIGNER_DRAIN_TIMEOUT", 25) * 1000,
+																			SignerConfig.getLong("SIGNER_DRAIN_GRACE", 5) * 1000),
+														"signer-shutdown"));
+		//the server is live (/xml/ping) meanwhile, and ready (/xml/ready) once it is over
+		Thread warmUp = new Thread(signer::warmUp, "signer-warmup");
+		warmUp.setDaemon(true);
+		warmUp.start();
 		
-		return signerServer;
+		return engine;
+	}
+	
+	/**
+	 * Admission lanes of a bulkhead, sized by SIGNER_{limit}_{bulkhead}, or by SIGNER_{limit} for both bulkheads.
+	 */
+	private static AdmissionFilter.Lanes lanes(String bulkhead) {
+		
+		int cores = Runtime.getRuntime().availableProcessors();
+		long queueTimeout = SignerConfig.getLong("SIGNER_QUEUE_TIMEOUT_MS", 2000);
+		AdmissionFilter.Lane small = new AdmissionFilter.Lane(limit("SIGNER_MAX_CONCURRENT", bulkhead, 2 * cores), limit("SIGNER_MAX_QUEUE", bulkhead, 4 * cores), queueTimeout);
+		//a few huge documents must not take the heap or the threads of the small ones
+		AdmissionFilter.Lane large = new AdmissionFilter.Lane(limit("SIGNER_LARGE_MAX_CONCURRENT", bulkhead, 2), limit("SIGNER_LARGE_MAX_QUEUE", bulkhead, 4), queueTimeout);
+		return new AdmissionFilter.Lanes(small, large);
+	}
+	
+	private static int limit(String name, String bulkhead, int defaultValue) {
+		return SignerConfig.getInt(name+"_"+bulkhead, SignerConfig.getInt(name, defaultValue));
 	}
 	
 	private int getPort(int defaultPort) {
@@ -83,10 +124,21 @@ public class HttpEndpoint extends ResourceConfig {
 	
 	private class SignerApplication extends Application {
 		
+		private final XMLSigner signer;
+		
+		private SignerApplication(XMLSigner signer) {
+			this.signer = signer;
+		}
+		
 		public Set<Class<?>> getClasses() {			
 			HashSet<Class<?>>set = new HashSet<>();
-			set.add((XMLSigner.class));
+			set.add(ServerTimingFilter.class);
+			set.add(ContentEncodingFilter.class);
 			return (Set<Class<?>>)Collections.unmodifiableSet( set );
 		}
+		
+		public Set<Object> getSingletons() {
+			return Collections.<Object>singleton(signer);
+		}
 	}
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpHandler;
+
+@SuppressWarnings("restriction")
+/**
+ * Server engine behind the {@link HttpEndpoint}, chosen with SIGNER_HTTP_ENGINE: jdk, the HttpServer of the JDK, or
+ * grizzly, see {@link GrizzlyHttpEngine}. Whatever the engine, requests go through the same filters (bulkheads,
+ * decoding and admission) and the same Jersey container, as JDK HttpServer exchanges.
+ *
+ * @author lddecaro@amazon.com
+ */
+interface HttpEngine {
+
+	/**
+	 * @param path context path of the application
+	 * @param handler the Jersey container
+	 * @param filters run in order before the handler
+	 */
+	void start(int port, String path, HttpHandler handler, List<Filter> filters) throws IOException;
+
+	/**
+	 * Closes the listening socket, waits up to timeout milliseconds for the requests in flight to be answered,
+	 * then closes the connections and stops the threads of the engine.
+	 */
+	void stop(long timeout);
+
+	static HttpEngine fromName(String name) {
+		switch (name.trim().toLowerCase()) {
+			case "jdk":		return new JdkHttpEngine();
+			case "grizzly":	return new GrizzlyHttpEngine();
+			default:		throw new IllegalArgumentException("Unknown HTTP engine "+name+", use jdk or grizzly");
+		}
+	}
+}
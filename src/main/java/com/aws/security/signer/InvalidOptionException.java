@@ -0,0 +1,31 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+/**
+ * A request the signer does not accept, such as a parameter with a value it does not know or a document the
+ * configured parser refuses, answered with 400. Other IllegalArgumentExceptions of the resource, such as a label
+ * not found, are answered with 404.
+ *
+ * @author lddecaro@amazon.com
+ */
+public class InvalidOptionException extends IllegalArgumentException {
+
+	private static final long serialVersionUID = 1L;
+
+	public InvalidOptionException(String message) {
+		super(message);
+	}
+}
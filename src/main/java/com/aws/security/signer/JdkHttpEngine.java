@@ -0,0 +1,59 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+@SuppressWarnings("restriction")
+/**
+ * The HttpServer of the JDK, with SIGNER_HTTP_THREADS threads reading the requests.
+ *
+ * @author lddecaro@amazon.com
+ */
+class JdkHttpEngine implements HttpEngine {
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	@Override
+	public void start(int port, String path, HttpHandler handler, List<Filter> filters) throws IOException {
+
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		//without an executor the server handles one request at a time in its dispatcher thread.
+		//its threads only hand requests over to the bulkheads
+		executor = Executors.newFixedThreadPool(SignerConfig.getInt("SIGNER_HTTP_THREADS", Runtime.getRuntime().availableProcessors()),
+												new NamedThreadFactory("signer-http-"));
+		server.setExecutor(executor);
+		HttpContext context = server.createContext(path, handler);
+		context.getFilters().addAll(filters);
+		server.start();
+	}
+
+	@Override
+	public void stop(long timeout) {
+		//the exchanges handed over to the bulkheads count as in flight until they are closed
+		server.stop((int) Math.ceil(timeout / 1000.0));
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+/**
+ * What the signer writes inside the ds:KeyInfo of a signature.
+ * 
+ * @author lddecaro@amazon.com
+ */
+public enum KeyInfoStyle {
+
+	/** RSA modulus and exponent. Can be validated by /xml/validate. */
+	KEY_VALUE("KeyValue"),
+	/** The self signed certificate of the key. Can be validated by /xml/validate. */
+	X509_DATA("X509Data"),
+	/** Subject key identifier of the certificate. Requires /xml/validate/{key}. */
+	X509_SKI("X509SKI"),
+	/** The key label. Requires /xml/validate/{key}. */
+	KEY_NAME("KeyName"),
+	/** No KeyInfo at all. Requires /xml/validate/{key}. */
+	NONE("None");
+
+	private final String name;
+
+	private KeyInfoStyle(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @throws InvalidOptionException if the value is not one of the styles
+	 */
+	public static KeyInfoStyle fromName(String value) {
+		for (KeyInfoStyle style : values()) {
+			if (style.name.equalsIgnoreCase(value) || style.name().equalsIgnoreCase(value)) {
+				return style;
+			}
+		}
+		throw new InvalidOptionException("Unknown KeyInfo style: "+value);
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.security.KeyPair;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Key pairs generated on the HSM ahead of time, so a label can get its key without waiting for the generation.
+ * A background thread keeps up to SIGNER_KEY_POOL_SIZE pairs ready. The HSM label of a pooled key is chosen when
+ * it is generated (pool-{uuid}) and cannot be changed afterwards, so the keystore entry of the label that takes it
+ * uses the pooled label as alias, see XMLSigner.alias(String).
+ *
+ * Pooled keys are persistent. The ones not taken when the service stops are deleted from the HSM, so each stop
+ * does not leave SIGNER_KEY_POOL_SIZE keys behind. Keys of a service that did not stop gracefully stay in the HSM
+ * with their pool- label.
+ *
+ * @author lddecaro@amazon.com
+ */
+class KeyPool {
+
+	private static final Logger	logger	=	LogManager.getLogger(KeyPool.class);
+
+	/** Generates a persistent key pair with the label. */
+	interface Generator {
+		KeyPair generate(String label) throws Exception;
+	}
+
+	/** Deletes a key pair from the HSM. */
+	interface Remover {
+		void delete(KeyPair keyPair) throws Exception;
+	}
+
+	private final int size;
+	private final Generator generator;
+	private final Remover remover;
+	private final BlockingQueue<PooledKey> available;
+	private final AtomicLong generated	=	new AtomicLong();
+	private final AtomicLong taken		=	new AtomicLong();
+	private final AtomicLong missed		=	new AtomicLong();
+	private final AtomicLong failures	=	new AtomicLong();
+	private final AtomicLong deleted	=	new AtomicLong();
+	private Thread filler;
+
+	/**
+	 * @param size key pairs kept ready. Zero disables the pool.
+	 */
+	KeyPool(int size, Generator generator, Remover remover) {
+		this.size = size;
+		this.generator = generator;
+		this.remover = remover;
+		this.available = new ArrayBlockingQueue<>(Math.max(1, size));
+	}
+
+	void start() {
+		if (size <= 0) {
+			return;
+		}
+		filler = new NamedThreadFactory("signer-key-pool-").newThread(this::fill);
+		filler.start();
+		logger.info("Keeping "+size+" pre-generated key pairs");
+	}
+
+	/**
+	 * Stops generating key pairs, waiting up to timeout milliseconds for the one being generated, and deletes the
+	 * ones not taken.
+	 */
+	void stop(long timeout) {
+		if (filler == null) {
+			return;
+		}
+		filler.interrupt();
+		try {
+			filler.join(Math.max(1, timeout));
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		PooledKey key;
+		while ((key = available.poll()) != null) {
+			delete(key);
+		}
+		logger.info("Deleted "+deleted.get()+" pre-generated key pairs not taken");
+	}
+
+	private void fill() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				String label = "pool-"+UUID.randomUUID();
+				PooledKey key = new PooledKey(label, generator.generate(label));
+				generated.incrementAndGet();
+				try {
+					// waits for a key to be taken when the pool is full
+					available.put(key);
+				}catch(InterruptedException ie) {
+					delete(key);
+					Thread.currentThread().interrupt();
+				}
+			}catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}catch(Exception e) {
+				failures.incrementAndGet();
+				logger.error("Could not generate a key pair for the pool. Message: "+e.getMessage());
+				try {
+					Thread.sleep(5000);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	private void delete(PooledKey key) {
+		try {
+			remover.delete(key.keyPair);
+			deleted.incrementAndGet();
+		}catch(Exception e) {
+			logger.error("Could not delete the pre-generated key pair "+key.label+". Message: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * @return a pre-generated key pair or null when the pool is empty or disabled
+	 */
+	PooledKey take() {
+		PooledKey key = size > 0 ? available.poll() : null;
+		if (key != null) {
+			taken.incrementAndGet();
+		}else if (size > 0) {
+			missed.incrementAndGet();
+		}
+		return key;
+	}
+
+	Map<String, Object> stats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("size", size);
+		stats.put("available", available.size());
+		stats.put("generated", generated.get());
+		stats.put("taken", taken.get());
+		stats.put("missed", missed.get());
+		stats.put("failures", failures.get());
+		stats.put("deleted", deleted.get());
+		return stats;
+	}
+
+	static class PooledKey {
+
+		private final String label;
+		private final KeyPair keyPair;
+
+		private PooledKey(String label, KeyPair keyPair) {
+			this.label = label;
+			this.keyPair = keyPair;
+		}
+
+		/** HSM label of the key, also its alias in the keystore. */
+		String getLabel() {
+			return label;
+		}
+
+		KeyPair getKeyPair() {
+			return keyPair;
+		}
+	}
+}
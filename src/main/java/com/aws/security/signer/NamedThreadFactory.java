@@ -0,0 +1,40 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Daemon threads named prefix1, prefix2... so the pools of the signer can be told apart in thread dumps.
+ *
+ * @author lddecaro@amazon.com
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+	private final String prefix;
+	private final AtomicInteger count = new AtomicInteger();
+
+	public NamedThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, prefix+count.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+}
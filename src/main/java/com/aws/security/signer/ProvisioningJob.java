@@ -0,0 +1,164 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of keys created in the background. It is what /xml/jobs/create receives ({"keys":[{"label":...,
+ * "certificate":{...}}]}) and what /xml/jobs/{id} returns as the job progresses. The result of each key is
+ * only returned by /xml/jobs/{id}/results.
+ *
+ * @author lddecaro@amazon.com
+ */
+public class ProvisioningJob {
+
+	public enum Status { RUNNING, DONE }
+
+	private String id;
+	private Status status;
+	private int total;
+	private int succeeded;
+	private int failed;
+	private Long submitted;
+	private Long finished;
+	private List<KeyRequest> keys;
+	private List<KeyResult> results;
+
+	public ProvisioningJob(){}
+
+	public String getId() {
+		return id;
+	}
+	public void setId(String id) {
+		this.id = id;
+	}
+	public Status getStatus() {
+		return status;
+	}
+	public void setStatus(Status status) {
+		this.status = status;
+	}
+	public int getTotal() {
+		return total;
+	}
+	public void setTotal(int total) {
+		this.total = total;
+	}
+	public int getSucceeded() {
+		return succeeded;
+	}
+	public void setSucceeded(int succeeded) {
+		this.succeeded = succeeded;
+	}
+	public int getFailed() {
+		return failed;
+	}
+	public void setFailed(int failed) {
+		this.failed = failed;
+	}
+	/** Time, in ms since the epoch, the job was submitted. */
+	public Long getSubmitted() {
+		return submitted;
+	}
+	public void setSubmitted(Long submitted) {
+		this.submitted = submitted;
+	}
+	/** Time, in ms since the epoch, the last key of the job was done. */
+	public Long getFinished() {
+		return finished;
+	}
+	public void setFinished(Long finished) {
+		this.finished = finished;
+	}
+	public List<KeyRequest> getKeys() {
+		return keys;
+	}
+	public void setKeys(List<KeyRequest> keys) {
+		this.keys = keys;
+	}
+	public List<KeyResult> getResults() {
+		return results;
+	}
+	public void setResults(List<KeyResult> results) {
+		this.results = results;
+	}
+
+	/**
+	 * The job without its keys and results.
+	 */
+	public ProvisioningJob summary() {
+		ProvisioningJob summary = new ProvisioningJob();
+		summary.id = id;
+		summary.status = status;
+		summary.total = total;
+		summary.succeeded = succeeded;
+		summary.failed = failed;
+		summary.submitted = submitted;
+		summary.finished = finished;
+		return summary;
+	}
+
+	List<KeyResult> resultsCopy() {
+		return new ArrayList<>(results);
+	}
+
+	public static class KeyRequest {
+
+		private String label;
+		private CertificateData certificate;
+
+		public KeyRequest(){}
+
+		public String getLabel() {
+			return label;
+		}
+		public void setLabel(String label) {
+			this.label = label;
+		}
+		public CertificateData getCertificate() {
+			return certificate;
+		}
+		public void setCertificate(CertificateData certificate) {
+			this.certificate = certificate;
+		}
+	}
+
+	public static class KeyResult {
+
+		private String label;
+		private boolean created;
+		private String message;
+
+		public KeyResult(){}
+
+		public KeyResult(String label, boolean created, String message) {
+			this.label = label;
+			this.created = created;
+			this.message = message;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+		public boolean isCreated() {
+			return created;
+		}
+		public String getMessage() {
+			return message;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs provisioning jobs in the background, creating at most SIGNER_PROVISIONING_PARALLELISM keys at once across
+ * all jobs. The last SIGNER_PROVISIONING_MAX_JOBS jobs are kept in memory to be polled, older finished jobs are
+ * forgotten.
+ *
+ * @author lddecaro@amazon.com
+ */
+class ProvisioningJobs {
+
+	private static final Logger	logger	=	LogManager.getLogger(ProvisioningJobs.class);
+
+	/** Creates the key of a label and returns a message describing what was done. */
+	interface Provisioner {
+		String provision(String label, CertificateData certificate) throws Exception;
+	}
+
+	private final ExecutorService executor;
+	private final int maxJobs;
+	private final Provisioner provisioner;
+	private final Map<String, ProvisioningJob> jobs = new LinkedHashMap<>();
+
+	ProvisioningJobs(int parallelism, int maxJobs, Provisioner provisioner) {
+		this.executor = Executors.newFixedThreadPool(parallelism, new NamedThreadFactory("signer-provisioning-"));
+		this.maxJobs = maxJobs;
+		this.provisioner = provisioner;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the job has no keys or a key has no label
+	 */
+	ProvisioningJob submit(List<ProvisioningJob.KeyRequest> keys) {
+
+		if (keys == null || keys.isEmpty()) {
+			throw new IllegalArgumentException("The job has no keys");
+		}
+		for (ProvisioningJob.KeyRequest key : keys) {
+			if (key == null || key.getLabel() == null || "".equals(key.getLabel().trim())) {
+				throw new IllegalArgumentException("Every key of the job must have a label");
+			}
+		}
+		final ProvisioningJob job = new ProvisioningJob();
+		job.setId(UUID.randomUUID().toString());
+		job.setStatus(ProvisioningJob.Status.RUNNING);
+		job.setTotal(keys.size());
+		job.setSubmitted(System.currentTimeMillis());
+		job.setResults(new ArrayList<>(keys.size()));
+		synchronized (jobs) {
+			jobs.put(job.getId(), job);
+			forgetOldJobs();
+		}
+		logger.info("Submitted provisioning job "+job.getId()+" with "+keys.size()+" keys");
+		for (final ProvisioningJob.KeyRequest key : keys) {
+			try {
+				executor.execute(() -> run(job, key));
+			}catch(RejectedExecutionException re) {
+				// the service is shutting down: the keys not queued fail, so the job still gets to DONE
+				record(job, new ProvisioningJob.KeyResult(key.getLabel(), false, "The service is shutting down"));
+			}
+		}
+		return summary(job);
+	}
+
+	/**
+	 * Stops taking jobs and waits up to timeout milliseconds for the keys of the running ones. Keys not created
+	 * by then are left to the threads, which are not interrupted in the middle of an HSM call.
+	 */
+	void shutdown(long timeout) throws InterruptedException {
+		executor.shutdown();
+		if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+			logger.info("Provisioning jobs still running after "+timeout+" ms");
+		}
+	}
+
+	private void run(ProvisioningJob job, ProvisioningJob.KeyRequest key) {
+
+		ProvisioningJob.KeyResult result;
+		try {
+			result = new ProvisioningJob.KeyResult(key.getLabel(), true, provisioner.provision(key.getLabel(), key.getCertificate()));
+		}catch(Exception e) {
+			logger.error("Could not create key "+key.getLabel()+" of job "+job.getId()+". Message: "+e.getMessage());
+			result = new ProvisioningJob.KeyResult(key.getLabel(), false, e.getMessage() != null ? e.getMessage() : e.toString());
+		}
+		record(job, result);
+	}
+
+	private static void record(ProvisioningJob job, ProvisioningJob.KeyResult result) {
+		synchronized (job) {
+			job.getResults().add(result);
+			if (result.isCreated()) {
+				job.setSucceeded(job.getSucceeded() + 1);
+			}else {
+				job.setFailed(job.getFailed() + 1);
+			}
+			if (job.getResults().size() == job.getTotal()) {
+				job.setStatus(ProvisioningJob.Status.DONE);
+				job.setFinished(System.currentTimeMillis());
+				logger.info("Provisioning job "+job.getId()+" done. Created "+job.getSucceeded()+" of "+job.getTotal()+" keys");
+			}
+		}
+	}
+
+	private void forgetOldJobs() {
+		Iterator<ProvisioningJob> itr = jobs.values().iterator();
+		while (jobs.size() > maxJobs && itr.hasNext()) {
+			ProvisioningJob job = itr.next();
+			synchronized (job) {
+				if (job.getStatus() == ProvisioningJob.Status.DONE) {
+					itr.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if there is no such job
+	 */
+	ProvisioningJob get(String id) {
+		return summary(job(id));
+	}
+
+	/**
+	 * @throws IllegalArgumentException if there is no such job
+	 */
+	List<ProvisioningJob.KeyResult> results(String id) {
+		ProvisioningJob job = job(id);
+		synchronized (job) {
+			return job.resultsCopy();
+		}
+	}
+
+	List<ProvisioningJob> list() {
+		List<ProvisioningJob> list = new ArrayList<>();
+		List<ProvisioningJob> all;
+		synchronized (jobs) {
+			all = new ArrayList<>(jobs.values());
+		}
+		for (ProvisioningJob job : all) {
+			list.add(summary(job));
+		}
+		Collections.reverse(list);
+		return list;
+	}
+
+	private ProvisioningJob job(String id) {
+		ProvisioningJob job;
+		synchronized (jobs) {
+			job = jobs.get(id);
+		}
+		if (job == null) {
+			throw new IllegalArgumentException("Job not found: "+id);
+		}
+		return job;
+	}
+
+	private static ProvisioningJob summary(ProvisioningJob job) {
+		synchronized (job) {
+			return job.summary();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+/**
+ * Whether the signer should be sent traffic, answered by /xml/ready. The service starts not ready, becomes
+ * ready once the warm-up of {@link XMLSigner#warmUp()} is over and stops being ready when it starts to shut down.
+ * Liveness is answered by /xml/ping, which is up as soon as the HTTP server is.
+ *
+ * @author lddecaro@amazon.com
+ */
+public final class Readiness {
+
+	public enum State { STARTING, WARMING_UP, READY, DRAINING }
+
+	private static volatile State state = State.STARTING;
+
+	private Readiness() {}
+
+	public static State get() {
+		return state;
+	}
+
+	public static synchronized void set(State state) {
+		Readiness.state = state;
+	}
+
+	/**
+	 * Moves to the next state unless the state changed meanwhile, e.g. the service started to shut down
+	 * while it was warming up.
+	 *
+	 * @return false when the state was not the expected one
+	 */
+	public static synchronized boolean set(State expected, State next) {
+		if (state != expected) {
+			return false;
+		}
+		state = next;
+		return true;
+	}
+
+	public static boolean isReady() {
+		return state == State.READY;
+	}
+}
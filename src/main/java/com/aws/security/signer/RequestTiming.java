@@ -0,0 +1,171 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.ThreadContext;
+
+/**
+ * Correlation id and time spent in each stage of the request handled by the current thread. The request is
+ * started by the {@link BulkheadFilter} when it hands the exchange over to a thread, so the stages are recorded
+ * by the resource and the code it calls without passing anything around, and returned to the client by the
+ * {@link ServerTimingFilter} in the Server-Timing header:
+ *
+ *   queue (bulkheads and admission), result-cache (a retry answered from the cache), parse, key (cache hit or
+ *   miss), digest (canonicalization and digests), hsm-queue (wait for the turn of the label), hsm (RSA operation),
+ *   serialize, validate, keygen (from the pool or the HSM), persist (keystore upload) and total.
+ *
+ * The correlation id is taken from the X-Correlation-Id header of the request, or generated, sent back in the
+ * same header and added to every log line of the request. Outside of a request, as in the command line mode,
+ * recording does nothing.
+ *
+ * @author lddecaro@amazon.com
+ */
+class RequestTiming {
+
+	static final String CORRELATION_HEADER = "X-Correlation-Id";
+	static final String CORRELATION_LOG_KEY = "correlationId";
+
+	/** Ids taken from clients are put in headers and logs, anything else is replaced. */
+	private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9._:-]{1,128}");
+
+	private static final ThreadLocal<RequestTiming> current = new ThreadLocal<>();
+
+	private final String correlationId;
+	private final long received;
+	private final Map<String, Stage> stages = new LinkedHashMap<>();
+
+	private RequestTiming(String correlationId, long received) {
+		this.correlationId = correlationId;
+		this.received = received;
+	}
+
+	/**
+	 * Starts the request on the current thread.
+	 *
+	 * @param requestedId correlation id sent by the client, may be null
+	 * @param received System.nanoTime() when the request arrived
+	 */
+	static RequestTiming begin(String requestedId, long received) {
+		String id = requestedId != null && VALID_ID.matcher(requestedId.trim()).matches() ? requestedId.trim() : UUID.randomUUID().toString();
+		RequestTiming timing = new RequestTiming(id, received);
+		current.set(timing);
+		ThreadContext.put(CORRELATION_LOG_KEY, id);
+		return timing;
+	}
+
+	static void end() {
+		current.remove();
+		ThreadContext.remove(CORRELATION_LOG_KEY);
+	}
+
+	/**
+	 * @return the request of the current thread or null
+	 */
+	static RequestTiming current() {
+		return current.get();
+	}
+
+	/**
+	 * Adds the time since start, a System.nanoTime(), to the stage.
+	 */
+	static void record(String stage, long start) {
+		record(stage, null, start);
+	}
+
+	static void record(String stage, String description, long start) {
+		add(stage, description, System.nanoTime() - start);
+	}
+
+	/**
+	 * Adds the time since start to the stage, leaving out the time spent meanwhile on the HSM and waiting for it.
+	 * Used for the digests, which signature.sign() computes before handing the SignedInfo to the HSM.
+	 *
+	 * @param hsmBefore {@link #hsmTotal()} at start
+	 */
+	static void recordExcludingHsm(String stage, long start, long hsmBefore) {
+		add(stage, null, System.nanoTime() - start - (hsmTotal() - hsmBefore));
+	}
+
+	/**
+	 * Nanoseconds recorded so far in the hsm-queue and hsm stages, 0 outside of a request.
+	 */
+	static long hsmTotal() {
+		RequestTiming timing = current.get();
+		if (timing == null) {
+			return 0;
+		}
+		long total = 0;
+		for (String stage : new String[] {"hsm-queue", "hsm"}) {
+			Stage recorded = timing.stages.get(stage);
+			total += recorded == null ? 0 : recorded.nanos;
+		}
+		return total;
+	}
+
+	private static void add(String stage, String description, long nanos) {
+		RequestTiming timing = current.get();
+		if (timing == null) {
+			return;
+		}
+		Stage recorded = timing.stages.get(stage);
+		if (recorded == null) {
+			recorded = new Stage();
+			timing.stages.put(stage, recorded);
+		}
+		recorded.nanos += Math.max(0, nanos);
+		if (description != null) {
+			recorded.description = description;
+		}
+	}
+
+	String getCorrelationId() {
+		return correlationId;
+	}
+
+	long getReceived() {
+		return received;
+	}
+
+	/**
+	 * Value of the Server-Timing header: the stages in the order they were first recorded and the total so far,
+	 * in milliseconds.
+	 */
+	String serverTiming() {
+		StringBuilder header = new StringBuilder();
+		for (Map.Entry<String, Stage> stage : stages.entrySet()) {
+			header.append(stage.getKey());
+			if (stage.getValue().description != null) {
+				header.append(";desc=\"").append(stage.getValue().description).append('"');
+			}
+			header.append(";dur=").append(millis(stage.getValue().nanos)).append(", ");
+		}
+		return header.append("total;dur=").append(millis(System.nanoTime() - received)).toString();
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	private static class Stage {
+		private long nanos = 0;
+		private String description;
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.io.IOException;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+
+/**
+ * Records the time the request waited before reaching the resource and returns the correlation id and the
+ * stages of the request, see {@link RequestTiming}, in the X-Correlation-Id and Server-Timing headers.
+ *
+ * @author lddecaro@amazon.com
+ */
+@PreMatching
+public class ServerTimingFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+	@Override
+	public void filter(ContainerRequestContext request) throws IOException {
+		RequestTiming timing = RequestTiming.current();
+		if (timing != null) {
+			RequestTiming.record("queue", timing.getReceived());
+		}
+	}
+
+	@Override
+	public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+		RequestTiming timing = RequestTiming.current();
+		if (timing != null) {
+			response.getHeaders().putSingle(RequestTiming.CORRELATION_HEADER, timing.getCorrelationId());
+			response.getHeaders().putSingle("Server-Timing", timing.serverTiming());
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * How a document is signed. Everything that changes the signed output must be here, since the
+ * options are part of the key of the signed documents cache.
+ *
+ * @author lddecaro@amazon.com
+ */
+public class SignOptions {
+
+	/** Where the ds:Signature of selected elements goes. */
+	public enum Placement {
+		/** One ds:Signature per selected element, right after the element, as in the NF-e layout. */
+		SIBLING,
+		/** A single ds:Signature with one reference per selected element, last child of the document element. */
+		ROOT;
+
+		public static Placement fromName(String value) {
+			if (value == null || "".equals(value.trim())) {
+				return SIBLING;
+			}
+			try {
+				return valueOf(value.trim().toUpperCase());
+			}catch(IllegalArgumentException ie) {
+				throw new InvalidOptionException("Unknown placement: "+value);
+			}
+		}
+	}
+
+	private KeyInfoStyle keyInfoStyle = KeyInfoStyle.KEY_VALUE;
+	private SignatureOutput output = SignatureOutput.ENVELOPED;
+	private List<String> ids = Collections.emptyList();
+	private List<String> xpaths = Collections.emptyList();
+	private Placement placement = Placement.SIBLING;
+	private Canonicalization canonicalization = Canonicalization.INCLUSIVE_WITH_COMMENTS;
+
+	public SignOptions(){}
+
+	public KeyInfoStyle getKeyInfoStyle() {
+		return keyInfoStyle;
+	}
+	public void setKeyInfoStyle(KeyInfoStyle keyInfoStyle) {
+		this.keyInfoStyle = keyInfoStyle;
+	}
+	public SignatureOutput getOutput() {
+		return output;
+	}
+	public void setOutput(SignatureOutput output) {
+		this.output = output;
+	}
+	/**
+	 * Values of the Id attribute of the elements to sign. Empty signs the whole document.
+	 */
+	public List<String> getIds() {
+		return ids;
+	}
+	public void setIds(List<String> ids) {
+		this.ids = ids == null ? Collections.<String>emptyList() : ids;
+	}
+	/**
+	 * XPath expressions selecting the elements to sign. Namespaces are not bound, use local-name().
+	 */
+	public List<String> getXpaths() {
+		return xpaths;
+	}
+	public void setXpaths(List<String> xpaths) {
+		this.xpaths = xpaths == null ? Collections.<String>emptyList() : xpaths;
+	}
+	public Placement getPlacement() {
+		return placement;
+	}
+	public void setPlacement(Placement placement) {
+		this.placement = placement;
+	}
+	/**
+	 * Canonicalization of the SignedInfo. References to elements use its variant without comments.
+	 */
+	public Canonicalization getCanonicalization() {
+		return canonicalization;
+	}
+	public void setCanonicalization(Canonicalization canonicalization) {
+		this.canonicalization = canonicalization;
+	}
+
+	public boolean isWholeDocument() {
+		return ids.isEmpty() && xpaths.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return keyInfoStyle+"/"+output+"/"+canonicalization+(isWholeDocument() ? "" : "/"+placement+"/"+ids+"/"+xpaths);
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+/**
+ * What the signer returns after signing a document.
+ * 
+ * @author lddecaro@amazon.com
+ */
+public enum SignatureOutput {
+
+	/** The whole document with the enveloped ds:Signature. */
+	ENVELOPED("enveloped"),
+	/** Only the ds:Signature element. The caller keeps the original document. */
+	SIGNATURE("signature"),
+	/** JSON with the SignatureValue and the DigestValue of the document, see {@link DetachedSignature}. */
+	VALUE("value");
+
+	private final String name;
+
+	private SignatureOutput(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @throws InvalidOptionException if the value is not one of the outputs
+	 */
+	public static SignatureOutput fromName(String value) {
+		if (value == null || "".equals(value.trim())) {
+			return ENVELOPED;
+		}
+		for (SignatureOutput output : values()) {
+			if (output.name.equalsIgnoreCase(value.trim())) {
+				return output;
+			}
+		}
+		throw new InvalidOptionException("Unknown output: "+value);
+	}
+}
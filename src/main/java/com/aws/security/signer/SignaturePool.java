@@ -0,0 +1,166 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signature objects already initialised with the key of a label, kept per thread, so the provider lookup and the
+ * initSign or initVerify of the key are done once per thread and key instead of once per document. A Signature
+ * returns to its initialised state after sign() or verify(), so the next document of the thread goes straight
+ * to update(). It is only handed out again once {@link #release(String, boolean) released} after its sign() or
+ * verify(), one left half way by a failure is initialised again.
+ *
+ * A Signature is only reused for the same key instance of the label, and {@link #invalidate(String)} drops
+ * the ones of a label on every thread, as the key cache does with its key. Each thread keeps the Signature of
+ * its maxPerThread most recently used labels, 0 disables the pool.
+ *
+ * @author lddecaro@amazon.com
+ */
+class SignaturePool {
+
+	private final String algorithm;
+	private final int maxPerThread;
+	private final ThreadLocal<Map<String, Pooled>> pooled;
+	//stamps come from one counter, a Signature initialised before the last invalidation of its label is stale
+	private final AtomicLong stamps					= new AtomicLong();
+	private final AtomicLong allInvalidated			= new AtomicLong();
+	private final Map<String, Long> invalidated		= new ConcurrentHashMap<>();
+
+	private final AtomicLong reused			= new AtomicLong();
+	private final AtomicLong initialised	= new AtomicLong();
+	private final AtomicLong invalidations	= new AtomicLong();
+
+	SignaturePool(String algorithm, final int maxPerThread) {
+		this.algorithm = algorithm;
+		this.maxPerThread = maxPerThread;
+		this.pooled = ThreadLocal.withInitial(() -> new LinkedHashMap<String, Pooled>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Pooled> eldest) {
+				return size() > maxPerThread;
+			}
+		});
+	}
+
+	/**
+	 * Signature of the thread initialised to sign with the key of the label.
+	 */
+	Signature forSigning(String label, PrivateKey key) throws GeneralSecurityException {
+		return get(label, key, true);
+	}
+
+	/**
+	 * Signature of the thread initialised to verify with the key of the label.
+	 */
+	Signature forVerifying(String label, PublicKey key) throws GeneralSecurityException {
+		return get(label, key, false);
+	}
+
+	/**
+	 * Makes the Signature of the thread reusable, once its sign() or verify() returned.
+	 */
+	void release(String label, boolean sign) {
+		Pooled p = pooled.get().get(entry(label, sign));
+		if (p != null) {
+			p.inUse = false;
+		}
+	}
+
+	/**
+	 * Drops the Signature objects of the label on every thread. Must be called whenever the key behind the label changes.
+	 */
+	void invalidate(String label) {
+		invalidated.put(label, stamps.incrementAndGet());
+		invalidations.incrementAndGet();
+	}
+
+	void invalidateAll() {
+		allInvalidated.set(stamps.incrementAndGet());
+		invalidated.clear();
+		invalidations.incrementAndGet();
+	}
+
+	Map<String, Object> stats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("maxPerThread", maxPerThread);
+		stats.put("reused", reused.get());
+		stats.put("initialised", initialised.get());
+		stats.put("invalidations", invalidations.get());
+		return stats;
+	}
+
+	private Signature get(String label, Key key, boolean sign) throws GeneralSecurityException {
+
+		if (maxPerThread <= 0) {
+			initialised.incrementAndGet();
+			return init(Signature.getInstance(algorithm), key, sign);
+		}
+		Map<String, Pooled> signatures = pooled.get();
+		String entry = entry(label, sign);
+		Pooled p = signatures.get(entry);
+		if (p != null && p.key == key && !p.inUse && p.stamp > lastInvalidation(label)) {
+			reused.incrementAndGet();
+			p.inUse = true;
+			return p.signature;
+		}
+		signatures.remove(entry);
+		long stamp = stamps.incrementAndGet();
+		// the provider of the key is chosen when the key is given
+		Signature signature = init(Signature.getInstance(algorithm), key, sign);
+		signatures.put(entry, new Pooled(key, stamp, signature));
+		initialised.incrementAndGet();
+		return signature;
+	}
+
+	private long lastInvalidation(String label) {
+		return Math.max(allInvalidated.get(), invalidated.getOrDefault(label, 0L));
+	}
+
+	private static Signature init(Signature signature, Key key, boolean sign) throws GeneralSecurityException {
+		if (sign) {
+			signature.initSign((PrivateKey) key);
+		} else {
+			signature.initVerify((PublicKey) key);
+		}
+		return signature;
+	}
+
+	private static String entry(String label, boolean sign) {
+		return (sign ? "sign/" : "verify/") + label;
+	}
+
+	private static class Pooled {
+
+		private final Key key;
+		private final long stamp;
+		private final Signature signature;
+		private boolean inUse = true;
+
+		private Pooled(Key key, long stamp, Signature signature) {
+			this.key = key;
+			this.stamp = stamp;
+			this.signature = signature;
+		}
+	}
+}
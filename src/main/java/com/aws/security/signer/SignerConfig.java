@@ -0,0 +1,64 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads tuning parameters of the signer. A value is looked up first as a JVM system property (-DNAME=value)
+ * and then as an environment variable with the same name, so the container can be tuned from the ECS task definition.
+ *
+ * @author lddecaro@amazon.com
+ */
+public class SignerConfig {
+
+	private static final Logger	logger	=	LogManager.getLogger(SignerConfig.class);
+
+	private SignerConfig() {}
+
+	public static String getString(String name, String defaultValue) {
+
+		String value = System.getProperty(name);
+		if( value == null || "".equals(value.trim()) ) {
+			value = System.getenv(name);
+		}
+		return value == null || "".equals(value.trim()) ? defaultValue : value.trim();
+	}
+
+	public static long getLong(String name, long defaultValue) {
+
+		String value = getString(name, null);
+		if( value == null ) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		}catch(NumberFormatException nfe) {
+			logger.info("Value of "+name+" is not a valid number ["+value+"]. Reverting to default ["+defaultValue+"].");
+			return defaultValue;
+		}
+	}
+
+	public static int getInt(String name, int defaultValue) {
+		return (int) getLong(name, defaultValue);
+	}
+
+	public static boolean getBoolean(String name, boolean defaultValue) {
+
+		String value = getString(name, null);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+/**
+ * JDK Flight Recorder events of the signer, with the key label, the size of the document and the outcome,
+ * so a recording can be sliced by key and payload size:
+ *
+ *   com.aws.signer.Sign, com.aws.signer.Validate, com.aws.signer.KeyLoad (private key read from the keystore),
+ *   com.aws.signer.KeystorePersist and com.aws.signer.Cache (loads and evictions of the in memory caches).
+ *
+ * The events are only emitted while a recording enables them, e.g. -XX:StartFlightRecording or jcmd JFR.start,
+ * and cost next to nothing otherwise. The JFR classes, see {@link FlightEvents}, are only loaded when the JVM
+ * has JFR (Corretto 8u262 and later), so the signer also runs on JVMs without it.
+ *
+ * @author lddecaro@amazon.com
+ */
+public final class SignerEvents {
+
+	public enum Type { SIGN, VALIDATE, KEY_LOAD, KEYSTORE_PERSIST }
+
+	/** A timed event, committed by {@link #end(String)}. */
+	public interface Scope {
+		void end(String outcome);
+	}
+
+	static final Scope NONE = outcome -> {};
+
+	private static final boolean AVAILABLE = available();
+
+	private SignerEvents() {}
+
+	/**
+	 * Starts a timed event.
+	 *
+	 * @param bytes size of the document or file, 0 when there is none
+	 */
+	public static Scope begin(Type type, String label, long bytes) {
+		return AVAILABLE ? FlightEvents.begin(type, label, bytes) : NONE;
+	}
+
+	/**
+	 * @param action load, lru (evicted to make room), ttl (expired) or remove
+	 */
+	public static void cache(String cache, Object key, String action) {
+		if (AVAILABLE) {
+			FlightEvents.cache(cache, key, action);
+		}
+	}
+
+	/**
+	 * Outcome of an event that ended with an exception.
+	 */
+	public static String outcome(Throwable t) {
+		return "error: "+t.getClass().getSimpleName();
+	}
+
+	private static boolean available() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+}
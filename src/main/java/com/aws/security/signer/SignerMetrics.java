@@ -0,0 +1,48 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Groups of metrics published by the parts of the signer that live outside of the JAX-RS resource, such as
+ * the HTTP server filters. Each group is a supplier of its current values and shows up in /xml/metrics.
+ *
+ * @author lddecaro@amazon.com
+ */
+public class SignerMetrics {
+
+	private static final Map<String, Supplier<Map<String, Object>>> groups = new LinkedHashMap<>();
+
+	private SignerMetrics() {}
+
+	public static void register(String group, Supplier<Map<String, Object>> stats) {
+		synchronized (groups) {
+			groups.put(group, stats);
+		}
+	}
+
+	public static Map<String, Object> snapshot() {
+		Map<String, Object> snapshot = new LinkedHashMap<>();
+		synchronized (groups) {
+			for (Map.Entry<String, Supplier<Map<String, Object>>> group : groups.entrySet()) {
+				snapshot.put(group.getKey(), group.getValue().get());
+			}
+		}
+		return snapshot;
+	}
+}
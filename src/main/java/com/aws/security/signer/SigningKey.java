@@ -0,0 +1,129 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.security.KeyException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+
+/**
+ * A key pair loaded from the keystore together with everything derived from it that does not change between
+ * signatures. The KeyInfo of every {@link KeyInfoStyle} is built once, when the key is loaded, so nothing
+ * about the key is encoded again per request.
+ *
+ * @author lddecaro@amazon.com
+ */
+public class SigningKey {
+
+	private final String label;
+	private final KeyPair keyPair;
+	private final X509Certificate certificate;
+	private final Map<KeyInfoStyle, KeyInfo> keyInfos = new EnumMap<>(KeyInfoStyle.class);
+
+	public SigningKey(String label, KeyPair keyPair, X509Certificate certificate) throws KeyException {
+
+		this.label = label;
+		this.keyPair = keyPair;
+		this.certificate = certificate;
+
+		KeyInfoFactory kif = XMLSignatureFactory.getInstance("DOM").getKeyInfoFactory();
+		keyInfos.put(KeyInfoStyle.KEY_VALUE, kif.newKeyInfo(Collections.singletonList(kif.newKeyValue(keyPair.getPublic()))));
+		keyInfos.put(KeyInfoStyle.KEY_NAME, kif.newKeyInfo(Collections.singletonList(kif.newKeyName(label))));
+		keyInfos.put(KeyInfoStyle.NONE, null);
+		if (certificate != null) {
+			keyInfos.put(KeyInfoStyle.X509_DATA, kif.newKeyInfo(Collections.singletonList(kif.newX509Data(Collections.singletonList(certificate)))));
+			keyInfos.put(KeyInfoStyle.X509_SKI, kif.newKeyInfo(Collections.singletonList(kif.newX509Data(Collections.singletonList(subjectKeyIdentifier(certificate))))));
+		}
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	public KeyPair getKeyPair() {
+		return keyPair;
+	}
+
+	public X509Certificate getCertificate() {
+		return certificate;
+	}
+
+	/**
+	 * @return the KeyInfo to embed in the signature or null when the style is {@link KeyInfoStyle#NONE}
+	 * @throws IllegalArgumentException if the key has no X509 certificate and the style needs one
+	 */
+	public KeyInfo getKeyInfo(KeyInfoStyle style) {
+		if (!keyInfos.containsKey(style)) {
+			throw new IllegalArgumentException("Key "+label+" has no X509 certificate. Cannot use KeyInfo style "+style.getName());
+		}
+		return keyInfos.get(style);
+	}
+
+	/**
+	 * The subject key identifier extension of the certificate or, when it is absent, the SHA-1 of the
+	 * subjectPublicKey bits as in method (1) of RFC 5280 section 4.2.1.2. Certificates created by
+	 * Utils.generateCert carry no extensions.
+	 */
+	static byte[] subjectKeyIdentifier(X509Certificate certificate) {
+
+		byte[] extension = certificate.getExtensionValue("2.5.29.14");
+		if (extension != null) {
+			// OCTET STRING wrapping the KeyIdentifier OCTET STRING
+			int[] outer = derContent(extension, 0);
+			int[] inner = derContent(extension, outer[0]);
+			return Arrays.copyOfRange(extension, inner[0], inner[0] + inner[1]);
+		}
+		// SubjectPublicKeyInfo ::= SEQUENCE { AlgorithmIdentifier, BIT STRING }
+		byte[] spki = certificate.getPublicKey().getEncoded();
+		int[] sequence = derContent(spki, 0);
+		int[] algorithm = derContent(spki, sequence[0]);
+		int[] bits = derContent(spki, algorithm[0] + algorithm[1]);
+		try {
+			// skip the unused bits byte of the BIT STRING
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			sha1.update(spki, bits[0] + 1, bits[1] - 1);
+			return sha1.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not available", e);
+		}
+	}
+
+	/**
+	 * @return offset and length of the content of the DER element starting at offset
+	 */
+	private static int[] derContent(byte[] der, int offset) {
+
+		int length = der[offset + 1] & 0xFF;
+		int start = offset + 2;
+		if (length > 0x7F) {
+			int bytes = length & 0x7F;
+			length = 0;
+			for (int i = 0; i < bytes; i++) {
+				length = (length << 8) | (der[start++] & 0xFF);
+			}
+		}
+		return new int[] { start, length };
+	}
+}
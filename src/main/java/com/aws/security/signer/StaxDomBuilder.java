@@ -0,0 +1,116 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.io.StringReader;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Builds a DOM from a StAX pull parser. It skips the work of a DOM parser that signing never needs (DTD
+ * processing, deferred nodes, checks of names already checked by the parser), which makes it faster on
+ * large documents. Documents with a DTD are refused: their default attributes and entities would be lost.
+ * CDATA sections become text, which canonicalizes to the same bytes.
+ *
+ * @author lddecaro@amazon.com
+ */
+class StaxDomBuilder {
+
+	private static final ThreadLocal<XMLInputFactory> inputFactories = ThreadLocal.withInitial(() -> {
+		XMLInputFactory xif = XMLInputFactory.newInstance();
+		xif.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		xif.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		xif.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		xif.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return xif;
+	});
+
+	private StaxDomBuilder() {}
+
+	/**
+	 * @param doc an empty document that receives the nodes
+	 * @throws InvalidOptionException if the document has a DTD, answered with 400
+	 */
+	static Document parse(String xml, Document doc) throws XMLStreamException {
+
+		XMLStreamReader reader = inputFactories.get().createXMLStreamReader(new StringReader(xml));
+		try {
+			// names were checked by the parser
+			doc.setStrictErrorChecking(false);
+			if (reader.standaloneSet()) {
+				doc.setXmlStandalone(reader.isStandalone());
+			}
+			Node parent = doc;
+			while (reader.hasNext()) {
+				switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					Element element = doc.createElementNS(namespace(reader.getNamespaceURI()), qualifiedName(reader.getPrefix(), reader.getLocalName()));
+					for (int i = 0; i < reader.getNamespaceCount(); i++) {
+						String prefix = reader.getNamespacePrefix(i);
+						element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, prefix == null || prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : qualifiedName(XMLConstants.XMLNS_ATTRIBUTE, prefix),
+								reader.getNamespaceURI(i) == null ? "" : reader.getNamespaceURI(i));
+					}
+					for (int i = 0; i < reader.getAttributeCount(); i++) {
+						element.setAttributeNS(namespace(reader.getAttributeNamespace(i)), qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)), reader.getAttributeValue(i));
+					}
+					parent.appendChild(element);
+					parent = element;
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					parent = parent.getParentNode();
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.SPACE:
+				case XMLStreamConstants.CDATA:
+					// whitespace outside the document element is not part of the DOM
+					if (parent != doc) {
+						parent.appendChild(doc.createTextNode(reader.getText()));
+					}
+					break;
+				case XMLStreamConstants.COMMENT:
+					parent.appendChild(doc.createComment(reader.getText()));
+					break;
+				case XMLStreamConstants.PROCESSING_INSTRUCTION:
+					parent.appendChild(doc.createProcessingInstruction(reader.getPITarget(), reader.getPIData()));
+					break;
+				case XMLStreamConstants.DTD:
+					throw new InvalidOptionException("Documents with a DTD are not supported by the stax parser");
+				default:
+					break;
+				}
+			}
+			return doc;
+		} finally {
+			doc.setStrictErrorChecking(true);
+			reader.close();
+		}
+	}
+
+	private static String namespace(String uri) {
+		return uri == null || uri.isEmpty() ? null : uri;
+	}
+
+	private static String qualifiedName(String prefix, String localName) {
+		return prefix == null || prefix.isEmpty() ? localName : prefix+":"+localName;
+	}
+}
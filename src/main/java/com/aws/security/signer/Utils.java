@@ -376,6 +376,15 @@ public class Utils {
         }
         return aliases.toArray(new String[]{});
     }
+    
+    /**
+     * Deletes both keys of a key pair generated on the HSM.
+     */
+    static void deleteKeyPair(KeyPair kp) throws CFM2Exception {
+    	
+    	Util.deleteKey((CaviumKey) kp.getPrivate());
+    	Util.deleteKey((CaviumKey) kp.getPublic());
+    }
 	
     /**
      * Retrieves an existing key from the HSM using a key handle.
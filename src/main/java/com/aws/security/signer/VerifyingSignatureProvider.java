@@ -0,0 +1,126 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.SignatureSpi;
+
+import javax.xml.crypto.dsig.XMLValidateContext;
+
+/**
+ * Provider given to the validation of a document against the trusted key of a label, so the SignedInfo is
+ * verified with a Signature of the {@link SignaturePool}, already initialised with the key, instead of a new
+ * one looked up and initialised for each document.
+ *
+ * @author lddecaro@amazon.com
+ */
+class VerifyingSignatureProvider extends Provider {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Property of the validate context read by the JSR 105 implementation of the JDK to get the Signature. */
+	private static final String SIGNATURE_PROVIDER = "org.jcp.xml.dsig.internal.dom.SignatureProvider";
+
+	private final transient String label;
+	private final transient SignaturePool signatures;
+
+	VerifyingSignatureProvider(String label, SignaturePool signatures) {
+		super("SignerVerify-"+label, 1.0, "Verification of the signatures of the label "+label);
+		this.label = label;
+		this.signatures = signatures;
+		putService(new Service(this, "Signature", "SHA256withRSA", PooledSignature.class.getName(), null, null) {
+			@Override
+			public Object newInstance(Object constructorParameter) {
+				return new PooledSignature();
+			}
+		});
+	}
+
+	/**
+	 * Makes the signatures validated with the context use this provider.
+	 */
+	void useIn(XMLValidateContext context) {
+		context.setProperty(SIGNATURE_PROVIDER, this);
+	}
+
+	private class PooledSignature extends SignatureSpi {
+
+		private Signature signature;
+
+		@Override
+		protected void engineInitVerify(PublicKey publicKey) throws InvalidKeyException {
+			try {
+				signature = signatures.forVerifying(label, publicKey);
+			} catch (InvalidKeyException e) {
+				throw e;
+			} catch (GeneralSecurityException e) {
+				throw new InvalidKeyException(e.getMessage(), e);
+			}
+		}
+
+		@Override
+		protected void engineInitSign(PrivateKey privateKey) throws InvalidKeyException {
+			throw new InvalidKeyException("Only verification is pooled");
+		}
+
+		@Override
+		protected void engineUpdate(byte b) throws SignatureException {
+			signature().update(b);
+		}
+
+		@Override
+		protected void engineUpdate(byte[] b, int off, int len) throws SignatureException {
+			signature().update(b, off, len);
+		}
+
+		@Override
+		protected byte[] engineSign() throws SignatureException {
+			throw new SignatureException("Only verification is pooled");
+		}
+
+		@Override
+		protected boolean engineVerify(byte[] sigBytes) throws SignatureException {
+			boolean verified = signature().verify(sigBytes);
+			signatures.release(label, false);
+			return verified;
+		}
+
+		private Signature signature() throws SignatureException {
+			if (signature == null) {
+				throw new SignatureException("Not initialised for verification");
+			}
+			return signature;
+		}
+
+		@Override
+		@Deprecated
+		protected void engineSetParameter(String param, Object value) throws InvalidParameterException {
+			throw new InvalidParameterException("No parameters");
+		}
+
+		@Override
+		@Deprecated
+		protected Object engineGetParameter(String param) throws InvalidParameterException {
+			throw new InvalidParameterException("No parameters");
+		}
+	}
+}
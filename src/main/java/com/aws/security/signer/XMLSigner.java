@@ -14,20 +14,25 @@
  */
 package com.aws.security.signer;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Type;
 import java.math.BigInteger;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.Key;
 import java.security.KeyException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.KeyStore;
+import java.security.KeyStoreException;
 import java.security.KeyStore.PasswordProtection;
 import java.security.KeyStore.PrivateKeyEntry;
 import java.security.NoSuchAlgorithmException;
@@ -36,12 +41,30 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Security;
 import java.security.cert.Certificate;
-import java.util.Arrays;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.crypto.Cipher;
 import javax.inject.Singleton;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
@@ -49,46 +72,47 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.xml.crypto.AlgorithmMethod;
 import javax.xml.crypto.KeySelector;
 import javax.xml.crypto.KeySelectorException;
 import javax.xml.crypto.KeySelectorResult;
 import javax.xml.crypto.XMLCryptoContext;
 import javax.xml.crypto.XMLStructure;
-import javax.xml.crypto.dsig.CanonicalizationMethod;
 import javax.xml.crypto.dsig.DigestMethod;
 import javax.xml.crypto.dsig.Reference;
 import javax.xml.crypto.dsig.SignatureMethod;
 import javax.xml.crypto.dsig.SignedInfo;
 import javax.xml.crypto.dsig.Transform;
 import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureException;
 import javax.xml.crypto.dsig.XMLSignatureFactory;
 import javax.xml.crypto.dsig.dom.DOMSignContext;
 import javax.xml.crypto.dsig.dom.DOMValidateContext;
 import javax.xml.crypto.dsig.keyinfo.KeyInfo;
-import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import javax.xml.crypto.dsig.keyinfo.KeyName;
 import javax.xml.crypto.dsig.keyinfo.KeyValue;
+import javax.xml.crypto.dsig.keyinfo.X509Data;
 import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
 import javax.xml.crypto.dsig.spec.TransformParameterSpec;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
+import com.aws.security.signer.cache.SignedDocumentCache;
 import com.aws.security.signer.cache.SignerInMemoryCache;
 import com.cavium.key.parameter.CaviumRSAKeyGenParameterSpec;
 import com.cavium.provider.CaviumProvider;
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
 
 /**
@@ -105,13 +129,41 @@ public class XMLSigner {
 
 	private	KeyStore keyStoreHSM 			= null;
 	private	Process	pr 						= null;
-	private Gson gson 						= new Gson();
-	private SignerInMemoryCache<String, KeyPair> cache = new SignerInMemoryCache<>(600,100,3000);
+	private Gson gson 						= new GsonBuilder().disableHtmlEscaping().create();
+	private SignerInMemoryCache<String, SigningKey> cache = new SignerInMemoryCache<>("signingKeys", SignerConfig.getLong("SIGNER_KEY_CACHE_TTL", 600),
+																	SignerConfig.getLong("SIGNER_KEY_CACHE_SCAN_INTERVAL", 100), SignerConfig.getInt("SIGNER_KEY_CACHE_MAX_ITEMS", 3000),
+																	"write".equalsIgnoreCase(SignerConfig.getString("SIGNER_KEY_CACHE_EXPIRY", "access")) ? SignerInMemoryCache.Expiry.WRITE : SignerInMemoryCache.Expiry.ACCESS,
+																	labelList(SignerConfig.getString("SIGNER_KEY_CACHE_PINNED", "")));
+	private final int preloadParallelism			=	SignerConfig.getInt("SIGNER_KEY_CACHE_PRELOAD_PARALLELISM", 8);
+	private final Map<String, PublicKey> trustedKeys	=	new ConcurrentHashMap<>();
+	private SignedDocumentCache resultCache	=	new SignedDocumentCache(SignerConfig.getLong("SIGNER_RESULT_CACHE_TTL", 300),
+																	SignerConfig.getInt("SIGNER_RESULT_CACHE_MAX_ITEMS", 0),
+																	SignerConfig.getLong("SIGNER_RESULT_CACHE_MAX_BYTES", 64L * 1024 * 1024));
 	private PasswordProtection pass			=	null;
 	private final String keyStoreFile		=	"KeyStoreHSM";
 	private static final String REGION		=	System.getenv("region");
 	private static final String HSM_CLUSTER_ID	=	System.getenv("ClusterId");	
-	private static final String RSA_SHA256_W3C_ID	=	"http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+	static final String RSA_SHA256_W3C_ID	=	"http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+	static final String NDJSON						=	"application/x-ndjson";
+	private final int batchMaxInFlight				=	SignerConfig.getInt("SIGNER_BATCH_MAX_IN_FLIGHT", 4 * Runtime.getRuntime().availableProcessors());
+	private final boolean parallelDigest			=	SignerConfig.getBoolean("SIGNER_PARALLEL_DIGEST", true);
+	private final ForkJoinPool batchPool			=	new ForkJoinPool(SignerConfig.getInt("SIGNER_BATCH_PARALLELISM", Runtime.getRuntime().availableProcessors()));
+	private final HsmScheduler hsmScheduler			=	new HsmScheduler(SignerConfig.getInt("SIGNER_HSM_CONCURRENCY", 4 * Runtime.getRuntime().availableProcessors()),
+																	SignerConfig.getLong("SIGNER_HSM_QUEUE_TIMEOUT_MS", 5000),
+																	SignerConfig.getInt("SIGNER_HSM_STATS_LABELS", 1000));
+	private final Map<String, HsmSignatureProvider> hsmProviders	=	new ConcurrentHashMap<>();
+	private final Map<String, VerifyingSignatureProvider> verifyingProviders	=	new ConcurrentHashMap<>();
+	private final SignaturePool signaturePool		=	new SignaturePool("SHA256withRSA", SignerConfig.getInt("SIGNER_SIGNATURE_POOL_SIZE", 64));
+	private final String keyAliasesFile				=	"KeyAliases";
+	//labels whose key was taken from the pool, mapped to the HSM label of the key, which is its alias in the keystore
+	private final Map<String, String> keyAliases	=	new ConcurrentHashMap<>();
+	private final KeyPool keyPool					=	new KeyPool(SignerConfig.getInt("SIGNER_KEY_POOL_SIZE", 0), label -> generateKeyPair(2048, label, Boolean.TRUE), Utils::deleteKeyPair);
+	private final ProvisioningJobs provisioningJobs	=	new ProvisioningJobs(SignerConfig.getInt("SIGNER_PROVISIONING_PARALLELISM", 4), SignerConfig.getInt("SIGNER_PROVISIONING_MAX_JOBS", 100),
+																		(label, certificate) -> { String message = provisionKey(label, certificate); persistLater(); return message; });
+	private final ScheduledExecutorService persister	=	Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("signer-keystore-"));
+	private final AtomicBoolean persistPending		=	new AtomicBoolean();
+	private final DataKeys dataKeys					=	new DataKeys(SignerConfig.getLong("SIGNER_DATA_KEY_ROTATION_SECONDS", 300), SignerConfig.getLong("SIGNER_DATA_KEY_MAX_USES", 1000000),
+																	SignerConfig.getLong("SIGNER_DATA_KEY_CACHE_TTL", 600), SignerConfig.getInt("SIGNER_DATA_KEY_CACHE_MAX_ITEMS", 1000));
 	
 	public XMLSigner() {
 
@@ -169,9 +221,18 @@ public class XMLSigner {
 			
 			keyStoreHSM	=	getKeyStoreHSM();
 			logger.info("Keystore Loaded...");
+			loadKeyAliases();
+			loadTrustedKeys();
 		
 	} 
 	
+	/**
+	 * Starts generating the key pairs of the pool. Only the server does, the command line modes never create keys.
+	 */
+	void startKeyPool() {
+		keyPool.start();
+	}
+	
 	private KeyStore getKeyStoreHSM() {
 		try {			
 			KeyStore keyStore = KeyStore.getInstance("CloudHSM");
@@ -193,38 +254,270 @@ public class XMLSigner {
 		} 
 	}
 	
+	/**
+	 * Caches the public key of every certificate in the keystore so documents can be validated by key label
+	 * without parsing the key material they carry.
+	 */
+	private void loadTrustedKeys() {
+		try {
+			for( String label : labels() ) {
+				Certificate cert = keyStoreHSM.getCertificate(alias(label));
+				if( cert != null ) {
+					trustedKeys.put(label, cert.getPublicKey());
+				}
+			}
+			logger.info("Loaded "+trustedKeys.size()+" trusted public keys from the keystore");
+		}catch(Exception e) {
+			logger.error("Could not load trusted public keys from the keystore. Message: "+e.getMessage());
+		}
+	}
+	
+	private PublicKey getTrustedKey(String label) throws KeyStoreException {
+		
+		long start = System.nanoTime();
+		PublicKey pk = trustedKeys.get(label);
+		if( pk != null ) {
+			RequestTiming.record("key", "hit", start);
+		}else {
+			Certificate cert = keyStoreHSM.getCertificate(alias(label));
+			if( cert == null ) {
+				throw new IllegalArgumentException("Label not found: "+label);
+			}
+			pk = cert.getPublicKey();
+			trustedKeys.put(label, pk);
+			RequestTiming.record("key", "miss", start);
+		}
+		return pk;
+	}
+	
+	/**
+	 * KeyInfo style asked in the request or, when absent, configured for the label (SIGNER_KEYINFO_{label})
+	 * or for every label (SIGNER_KEYINFO). Defaults to KeyValue.
+	 */
+	private KeyInfoStyle getKeyInfoStyle(String label, String requested) {
+		
+		if( requested == null || "".equals(requested.trim()) ) {
+			requested = SignerConfig.getString("SIGNER_KEYINFO_"+label, SignerConfig.getString("SIGNER_KEYINFO", KeyInfoStyle.KEY_VALUE.getName()));
+		}
+		return KeyInfoStyle.fromName(requested.trim());
+	}
+	
+	/**
+	 * Canonicalization asked in the request or, when absent, configured for the label (SIGNER_C14N_{label})
+	 * or for every label (SIGNER_C14N). Defaults to inclusive with comments.
+	 */
+	private Canonicalization getCanonicalization(String label, String requested) {
+		
+		if( requested == null || "".equals(requested.trim()) ) {
+			requested = SignerConfig.getString("SIGNER_C14N_"+label, SignerConfig.getString("SIGNER_C14N", Canonicalization.INCLUSIVE_WITH_COMMENTS.getName()));
+		}
+		return Canonicalization.fromName(requested);
+	}
+	
+	/**
+	 * Alias in the keystore of the key of the label. It is the label itself unless the key was taken from the pool.
+	 */
+	private String alias(String label) {
+		return keyAliases.getOrDefault(label, label);
+	}
+	
+	/**
+	 * Labels with a key in the keystore. Keys of the pool not taken by any label are left out.
+	 */
+	private Collection<String> labels() throws Exception {
+		
+		Set<String> labels = new LinkedHashSet<>();
+		Collection<String> pooled = keyAliases.values();
+		for( String alias : Utils.listKeys(keyStoreHSM) ) {
+			if( !pooled.contains(alias) && !alias.startsWith("pool-") ) {
+				labels.add(alias);
+			}
+		}
+		labels.addAll(keyAliases.keySet());
+		return labels;
+	}
+	
+	private void loadKeyAliases() {
+		
+		try(Reader reader = new InputStreamReader(Utils.getKeyStoreFromS3(keyAliasesFile, "keystore-"+XMLSigner.HSM_CLUSTER_ID, XMLSigner.REGION), StandardCharsets.UTF_8)){
+			Map<String, String> aliases = gson.fromJson(reader, new TypeToken<Map<String, String>>() {}.getType());
+			if( aliases != null ) {
+				keyAliases.putAll(aliases);
+			}
+			logger.info("Loaded "+keyAliases.size()+" labels with pre-generated keys");
+		}catch(Exception e) {
+			logger.info("No labels with pre-generated keys found in S3");
+		}
+	}
+	
 	private void persistKeyStore() {
 		
-        try(FileOutputStream outstream = new FileOutputStream(keyStoreFile)){
-        	keyStoreHSM.store(outstream, pass.getPassword());
-        	logger.info("Persisted successfully local keystore to file");
-        } catch (Exception e) {
-        	logger.error("Could not persist data to local keystore file. Message: "+e.getMessage());
+		synchronized (keyStoreHSM) {
+			SignerEvents.Scope event = SignerEvents.begin(SignerEvents.Type.KEYSTORE_PERSIST, null, 0);
+	        try(FileOutputStream outstream = new FileOutputStream(keyStoreFile)){
+	        	keyStoreHSM.store(outstream, pass.getPassword());
+	        	logger.info("Persisted successfully local keystore to file");
+	        	event.end("persisted");
+	        } catch (Exception e) {
+	        	logger.error("Could not persist data to local keystore file. Message: "+e.getMessage());
+	        	event.end(SignerEvents.outcome(e));
+			}
+	        try(Writer writer = new OutputStreamWriter(new FileOutputStream(keyAliasesFile), StandardCharsets.UTF_8)){
+	        	gson.toJson(keyAliases, writer);
+	        } catch (Exception e) {
+	        	logger.error("Could not persist labels with pre-generated keys to local file. Message: "+e.getMessage());
+			}
+	        //uploaded under the lock too, or an older keystore could overwrite a newer one in S3
+	        Utils.putKeyStoreInS3(keyStoreFile, "keystore-"+XMLSigner.HSM_CLUSTER_ID, XMLSigner.REGION);
+	        Utils.putKeyStoreInS3(keyAliasesFile, "keystore-"+XMLSigner.HSM_CLUSTER_ID, XMLSigner.REGION);
 		}
-        Utils.putKeyStoreInS3(keyStoreFile, "keystore-"+XMLSigner.HSM_CLUSTER_ID, XMLSigner.REGION);
 	}
     
 	@POST
 	@Path("/sign/{key}")
+	@HsmBound
 	@Consumes(MediaType.APPLICATION_XML)
-	@Produces(MediaType.APPLICATION_XML)
-	public String sign(String xml, @PathParam("key") String keyName){
+	@Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
+	public Response sign(String xml, @PathParam("key") String keyName, @QueryParam("keyInfo") String keyInfo, @QueryParam("output") String output,
+						@QueryParam("id") List<String> ids, @QueryParam("xpath") List<String> xpaths, @QueryParam("placement") String placement,
+						@QueryParam("c14n") String c14n){
 		
 		logger.info("Received this xml: " + xml);
 		logger.info("Key: " + keyName);
 
 		long init = System.currentTimeMillis();
 		try {
-			String returnXML = signXML(xml, keyName);
+			SignOptions options = new SignOptions();
+			options.setKeyInfoStyle(getKeyInfoStyle(keyName, keyInfo));
+			options.setOutput(SignatureOutput.fromName(output));
+			options.setIds(ids);
+			options.setXpaths(xpaths);
+			options.setPlacement(SignOptions.Placement.fromName(placement));
+			options.setCanonicalization(getCanonicalization(keyName, c14n));
+			String mediaType = options.getOutput() == SignatureOutput.VALUE ? MediaType.APPLICATION_JSON : MediaType.APPLICATION_XML;
+			//retries of the same document with the same key return the previous signature instead of calling the HSM again
+			long start = System.nanoTime();
+			String fingerprint = resultCache.isEnabled() ? SignedDocumentCache.fingerprint(xml)+"/"+options : null;
+			String returnXML = resultCache.get(keyName, fingerprint);
+			if( returnXML != null ) {
+				RequestTiming.record("result-cache", "hit", start);
+				logger.info("Returned cached signed XML in "+(System.currentTimeMillis()-init)+" ms.");
+				return Response.ok(returnXML, mediaType).build();
+			}
+			returnXML = signXML(xml, keyName, options);
+			resultCache.put(keyName, fingerprint, returnXML);
 			logger.info("Signed XML in "+(System.currentTimeMillis()-init)+" ms.");
-			return returnXML;
+			return Response.ok(returnXML, mediaType).build();
+		}catch(InvalidOptionException oe){
+			throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).entity(oe.getMessage()).build());
 		}catch(IllegalArgumentException ie){			
 			throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND).entity(ie.getMessage()).build());
+		}catch(HsmScheduler.BusyException be){
+			throw new WebApplicationException(Response.status(429).header("Retry-After", SignerConfig.getLong("SIGNER_RETRY_AFTER", 1)).entity(be.getMessage()).build());
 		}catch(Exception e) {
 			throw new WebApplicationException(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Could not sign XML. Message:"+e.getMessage()).build());
 		}
 	}
 	
+	/**
+	 * Signs the whole document, enveloped, with the KeyInfo and canonicalization configured for the label.
+	 * Used by {@link BulkSigner}, which signs without the HTTP endpoint or the result cache.
+	 */
+	String signDocument(String xml, String keyName) throws Exception {
+		
+		SignOptions options = new SignOptions();
+		options.setKeyInfoStyle(getKeyInfoStyle(keyName, null));
+		options.setOutput(SignatureOutput.ENVELOPED);
+		options.setCanonicalization(getCanonicalization(keyName, null));
+		return signXML(xml, keyName, options);
+	}
+	
+	/**
+	 * Encrypts the document, or the elements selected by Id or XPath, for the label with W3C XML Encryption.
+	 * See {@link XmlEncryption}. Only the public key of the label is used, the HSM is not called.
+	 */
+	@POST
+	@Path("/encrypt/{key}")
+	@Consumes(MediaType.APPLICATION_XML)
+	@Produces(MediaType.APPLICATION_XML)
+	public String encrypt(String xml, @PathParam("key") String keyName, @QueryParam("id") List<String> ids, @QueryParam("xpath") List<String> xpaths) {
+		
+		if( xml == null || "".equals(xml.trim())){
+			throw new WebApplicationException(Response.status( Response.Status.NOT_FOUND).entity("You did not sent XML file for encryption.").build());
+		}
+		long init = System.currentTimeMillis();
+		try {
+			DataKeys.DataKey key = dataKeys.forEncryption(keyName, getTrustedKey(keyName));
+			Document doc = XmlFactories.parse(xml);
+			List<Element> elements = ids.isEmpty() && xpaths.isEmpty() ? Collections.singletonList(doc.getDocumentElement())
+																		: ElementReferences.select(doc, ids, xpaths).getElements();
+			XmlEncryption.encrypt(elements, keyName, key);
+			StringWriter writer = new StringWriter(xml.length() + 1024);
+			XmlFactories.serialize(doc, writer);
+			logger.info("Encrypted XML in "+(System.currentTimeMillis()-init)+" ms.");
+			return writer.toString();
+		}catch(InvalidOptionException oe){
+			throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).entity(oe.getMessage()).build());
+		}catch(IllegalArgumentException ie){
+			throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND).entity(ie.getMessage()).build());
+		}catch(Exception e) {
+			logger.error(e);
+			throw new WebApplicationException(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Could not encrypt XML. Message:"+e.getMessage()).build());
+		}
+	}
+	
+	/**
+	 * Decrypts every EncryptedData of the document wrapped for the label. The data key is unwrapped by the HSM
+	 * unless it is in the cache of {@link DataKeys}.
+	 */
+	@POST
+	@Path("/decrypt/{key}")
+	@HsmBound
+	@Consumes(MediaType.APPLICATION_XML)
+	@Produces(MediaType.APPLICATION_XML)
+	public String decrypt(String xml, @PathParam("key") String keyName) {
+		
+		if( xml == null || "".equals(xml.trim())){
+			throw new WebApplicationException(Response.status( Response.Status.NOT_FOUND).entity("You did not sent XML file for decryption.").build());
+		}
+		long init = System.currentTimeMillis();
+		try {
+			Document doc = XmlFactories.parse(xml);
+			int decrypted = XmlEncryption.decrypt(doc, (label, wrapped) -> {
+				if( !keyName.equals(label) ) {
+					throw new IllegalArgumentException("Element encrypted for the label "+label+", not "+keyName);
+				}
+				return dataKeys.forDecryption(label, wrapped, this::unwrap);
+			});
+			StringWriter writer = new StringWriter(xml.length());
+			XmlFactories.serialize(doc, writer);
+			logger.info("Decrypted "+decrypted+" elements in "+(System.currentTimeMillis()-init)+" ms.");
+			return writer.toString();
+		}catch(InvalidOptionException oe){
+			throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).entity(oe.getMessage()).build());
+		}catch(IllegalArgumentException ie){
+			throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND).entity(ie.getMessage()).build());
+		}catch(HsmScheduler.BusyException be){
+			throw new WebApplicationException(Response.status(429).header("Retry-After", SignerConfig.getLong("SIGNER_RETRY_AFTER", 1)).entity(be.getMessage()).build());
+		}catch(Exception e) {
+			logger.error(e);
+			throw new WebApplicationException(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Could not decrypt XML. Message:"+e.getMessage()).build());
+		}
+	}
+	
+	/**
+	 * Unwraps a data key with the private key of the label, in the turn of the label on the HSM.
+	 */
+	private byte[] unwrap(String label, byte[] wrapped) throws Exception {
+		
+		PrivateKey privateKey = getSigningKey(label).getKeyPair().getPrivate();
+		return hsmScheduler.run(label, () -> {
+			Cipher cipher = Cipher.getInstance(DataKeys.WRAP_TRANSFORMATION);
+			cipher.init(Cipher.DECRYPT_MODE, privateKey);
+			return cipher.doFinal(wrapped);
+		});
+	}
+	
 	@GET
 	@Path("/ping")
 	@Consumes(MediaType.TEXT_PLAIN)
@@ -233,6 +526,20 @@ public class XMLSigner {
 		return Boolean.TRUE;
 	}
 	
+	/**
+	 * Readiness, as opposed to the liveness of /xml/ping: 503 until the warm-up is over and once the service
+	 * started to shut down. See {@link Readiness}.
+	 */
+	@GET
+	@Path("/ready")
+	@Produces(MediaType.TEXT_PLAIN)
+	public Response ready() {
+		if( Readiness.isReady() ) {
+			return Response.ok(Boolean.TRUE.toString()).build();
+		}
+		return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(Readiness.get().name()).build();
+	}
+	
 	@POST
 	@Path("/validate")
 	@Consumes(MediaType.APPLICATION_XML)
@@ -244,15 +551,298 @@ public class XMLSigner {
 		}
 		try {
 			logger.info("Signed XML: "+xml);
-			return validateSignedXML(xml);
+			return validateSignedXML(xml, new KeyValueKeySelector());
+		}catch(InvalidOptionException oe){
+			throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).entity(oe.getMessage()).build());
 		}catch(Exception e) {
 			e.printStackTrace();
 			throw new WebApplicationException(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Could not sign XML. Message:"+e.getMessage()).build());
 		}
 	}
 	
+	/**
+	 * Validates the document against the certificate of the label in the keystore. The key carried by the document,
+	 * if any, is ignored, so documents may carry only a KeyName or no KeyInfo at all.
+	 */
+	@POST
+	@Path("/validate/{key}")
+	@Consumes(MediaType.APPLICATION_XML)
+	@Produces(MediaType.TEXT_PLAIN)
+	public Boolean validate(String xml, @PathParam("key") String keyName) {
+		
+		if( xml == null || "".equals(xml.trim())){
+			throw new WebApplicationException(Response.status( Response.Status.NOT_FOUND).entity("You did not sent XML file for validation.").build());
+		}
+		try {
+			logger.info("Key: "+keyName);
+			return validateSignedXML(xml, new TrustedKeySelector(keyName, getTrustedKey(keyName)));
+		}catch(InvalidOptionException oe){
+			throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).entity(oe.getMessage()).build());
+		}catch(IllegalArgumentException ie){
+			throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND).entity(ie.getMessage()).build());
+		}catch(WebApplicationException we) {
+			throw we;
+		}catch(Exception e) {
+			logger.error(e);
+			throw new WebApplicationException(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Could not validate XML. Message:"+e.getMessage()).build());
+		}
+	}
+	
+	/**
+	 * Validates a signature kept apart from its document, see {@link DetachedSignature}.
+	 * The signature is put back as the last child of the document element, where it was created.
+	 */
+	@POST
+	@Path("/detached/validate")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.TEXT_PLAIN)
+	public Boolean validateDetached(String json) {
+		
+		DetachedSignature detached = json == null ? null : gson.fromJson(json, DetachedSignature.class);
+		if( detached == null || detached.getDocument() == null || "".equals(detached.getDocument().trim()) ){
+			throw new WebApplicationException(Response.status( Response.Status.NOT_FOUND).entity("You did not sent XML file for validation.").build());
+		}
+		if( detached.getSignature() == null && (detached.getSignatureValue() == null || detached.getDigestValue() == null) ){
+			throw new WebApplicationException(Response.status( Response.Status.NOT_FOUND).entity("You did not sent the signature or the signatureValue and digestValue for validation.").build());
+		}
+		try {
+			KeySelector keySelector = detached.getKey() == null ? new KeyValueKeySelector() : new TrustedKeySelector(detached.getKey(), getTrustedKey(detached.getKey()));
+			Document doc = XmlFactories.parse(detached.getDocument());
+			String signatureXML = detached.getSignature() != null ? detached.getSignature() : signatureOf(detached);
+			Document signatureDoc = XmlFactories.parse(signatureXML);
+			doc.getDocumentElement().appendChild(doc.importNode(signatureDoc.getDocumentElement(), true));
+			return validateSignedXML(doc, keySelector);
+		}catch(InvalidOptionException oe){
+			throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).entity(oe.getMessage()).build());
+		}catch(IllegalArgumentException ie){
+			throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND).entity(ie.getMessage()).build());
+		}catch(Exception e) {
+			logger.error(e);
+			throw new WebApplicationException(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Could not validate XML. Message:"+e.getMessage()).build());
+		}
+	}
+	
+	/**
+	 * Rebuilds the ds:Signature created by signXML from its SignatureValue and DigestValue.
+	 */
+	private static String signatureOf(DetachedSignature detached) {
+		
+		Canonicalization c14n = detached.getCanonicalization() == null ? Canonicalization.INCLUSIVE_WITH_COMMENTS : Canonicalization.fromName(detached.getCanonicalization());
+		return "<Signature xmlns=\""+XMLSignature.XMLNS+"\"><SignedInfo>"
+				+ "<CanonicalizationMethod Algorithm=\""+c14n.getAlgorithm()+"\"/>"
+				+ "<SignatureMethod Algorithm=\""+XMLSigner.RSA_SHA256_W3C_ID+"\"/>"
+				+ "<Reference URI=\"\"><Transforms><Transform Algorithm=\""+Transform.ENVELOPED+"\"/></Transforms>"
+				+ "<DigestMethod Algorithm=\""+DigestMethod.SHA256+"\"/><DigestValue>"+detached.getDigestValue()+"</DigestValue></Reference>"
+				+ "</SignedInfo><SignatureValue>"+detached.getSignatureValue()+"</SignatureValue></Signature>";
+	}
+	
+	/**
+	 * Validates a stream of NDJSON documents (see {@link BatchDocument}) in parallel and streams back one
+	 * {@link BatchResult} per line as each validation completes. At most SIGNER_BATCH_MAX_IN_FLIGHT documents
+	 * are held in memory at once, the reading of the request waits for room.
+	 */
+	@POST
+	@Path("/batch/validate")
+	@Consumes(XMLSigner.NDJSON)
+	@Produces(XMLSigner.NDJSON)
+	public StreamingOutput validateBatch(final InputStream documents) {
+		
+		return processBatch(documents, "Validated", this::validateBatchDocument);
+	}
+	
+	/**
+	 * Signs a stream of NDJSON documents (see {@link BatchDocument}) with the key, as /sign/{key} does with the KeyInfo
+	 * and canonicalization configured for the label, and streams back one {@link BatchResult} per line, with the signed
+	 * document in xml, as each signature completes. The key of the lines is ignored. Used by the client SDK to send
+	 * concurrent signatures of the same key in one request.
+	 */
+	@POST
+	@Path("/batch/sign/{key}")
+	@HsmBound
+	@Consumes(XMLSigner.NDJSON)
+	@Produces(XMLSigner.NDJSON)
+	public StreamingOutput signBatch(final InputStream documents, @PathParam("key") final String keyName) {
+		
+		return processBatch(documents, "Signed", (index, line) -> signBatchDocument(index, line, keyName));
+	}
+	
+	private interface BatchProcessor {
+		BatchResult process(long index, String line);
+	}
+	
+	/**
+	 * Processes the lines of the request on the batch pool, holding at most SIGNER_BATCH_MAX_IN_FLIGHT of them at once,
+	 * and writes each result as it completes.
+	 */
+	private StreamingOutput processBatch(final InputStream documents, final String action, final BatchProcessor processor) {
+		
+		return output -> {
+			final Semaphore inFlight = new Semaphore(batchMaxInFlight);
+			final Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+			final AtomicReference<IOException> failure = new AtomicReference<>();
+			long index = 0;
+			long init = System.currentTimeMillis();
+			try(BufferedReader reader = new BufferedReader(new InputStreamReader(documents, StandardCharsets.UTF_8))){
+				String line;
+				while( (line = reader.readLine()) != null && failure.get() == null ) {
+					if( "".equals(line.trim()) ) {
+						continue;
+					}
+					inFlight.acquireUninterruptibly();
+					final String document = line;
+					final long position = index++;
+					try {
+						batchPool.execute(() -> {
+							try {
+								writeBatchResult(writer, processor.process(position, document));
+							}catch(IOException e) {
+								failure.compareAndSet(null, e);
+							}finally {
+								inFlight.release();
+							}
+						});
+					}catch(RejectedExecutionException re) {
+						//the service is closing: stop reading, the batch ends with an error
+						inFlight.release();
+						failure.compareAndSet(null, new IOException("Batch interrupted after "+position+" documents, the service is shutting down"));
+					}
+				}
+			}finally {
+				inFlight.acquireUninterruptibly(batchMaxInFlight);
+			}
+			if( failure.get() != null ) {
+				throw failure.get();
+			}
+			logger.info(action+" batch of "+index+" documents in "+(System.currentTimeMillis()-init)+" ms.");
+		};
+	}
+	
+	private BatchResult signBatchDocument(long index, String line, String keyName) {
+		
+		BatchResult result = new BatchResult(index, null);
+		try {
+			BatchDocument document = gson.fromJson(line, BatchDocument.class);
+			result.setId(document.getId());
+			if( document.getXml() == null || "".equals(document.getXml().trim()) ) {
+				throw new IllegalArgumentException("Document has no xml");
+			}
+			result.setXml(signDocument(document.getXml(), keyName));
+		}catch(HsmScheduler.BusyException be) {
+			result.setError("busy: "+be.getMessage());
+		}catch(Exception e) {
+			result.setError(e.getClass().getSimpleName()+": "+e.getMessage());
+		}
+		return result;
+	}
+	
+	private BatchResult validateBatchDocument(long index, String line) {
+		
+		BatchResult result = new BatchResult(index, null);
+		try {
+			BatchDocument document = gson.fromJson(line, BatchDocument.class);
+			result.setId(document.getId());
+			if( document.getXml() == null || "".equals(document.getXml().trim()) ) {
+				throw new IllegalArgumentException("Document has no xml");
+			}
+			KeySelector keySelector = document.getKey() == null ? new KeyValueKeySelector() : new TrustedKeySelector(document.getKey(), getTrustedKey(document.getKey()));
+			result.setValid(validateSignedXML(document.getXml(), keySelector));
+		}catch(WebApplicationException we) {
+			result.setValid(Boolean.FALSE);
+			result.setError(we.getMessage());
+		}catch(Exception e) {
+			result.setValid(Boolean.FALSE);
+			result.setError(e.getClass().getSimpleName()+": "+e.getMessage());
+		}
+		return result;
+	}
+	
+	private void writeBatchResult(Writer writer, BatchResult result) throws IOException {
+		
+		String line = gson.toJson(result);
+		synchronized (writer) {
+			writer.write(line);
+			writer.write('\n');
+			writer.flush();
+		}
+	}
+	
+	@GET
+	@Path("/metrics")
+	@Produces(MediaType.APPLICATION_JSON)
+	public String metrics() {
+		Map<String, Object> metrics = new LinkedHashMap<>();
+		metrics.put("keyCache", cache.stats());
+		metrics.put("resultCache", resultCache.stats());
+		metrics.put("hsm", hsmScheduler.stats());
+		metrics.put("signatures", signaturePool.stats());
+		metrics.put("keyPool", keyPool.stats());
+		metrics.put("dataKeys", dataKeys.stats());
+		metrics.putAll(SignerMetrics.snapshot());
+		return gson.toJson(metrics);
+	}
+	
+	/**
+	 * Policy, size, hit ratio, evictions and load times of the cache of signing keys.
+	 */
+	@GET
+	@Path("/cache")
+	@Produces(MediaType.APPLICATION_JSON)
+	public String cacheStats() {
+		return gson.toJson(cache.stats());
+	}
+	
+	/**
+	 * Drops the key of the label from the caches, so the next request reads it again from the keystore.
+	 * Use it when the key behind a label was changed outside of this container.
+	 */
+	@POST
+	@Path("/cache/invalidate/{key}")
+	@Produces(MediaType.TEXT_PLAIN)
+	public String invalidateKey(@PathParam("key") String keyName) {
+		invalidate(keyName);
+		logger.info("Invalidated the cached key of "+keyName);
+		return "Invalidated the cached key of "+keyName;
+	}
+	
+	@POST
+	@Path("/cache/invalidate")
+	@Produces(MediaType.TEXT_PLAIN)
+	public String invalidateKeys() {
+		int size = cache.clear();
+		trustedKeys.clear();
+		signaturePool.invalidateAll();
+		resultCache.invalidateAll();
+		dataKeys.rotateAll();
+		logger.info("Invalidated "+size+" cached keys");
+		return "Invalidated "+size+" cached keys";
+	}
+	
+	/**
+	 * Loads the keys of a JSON array of labels into the cache, SIGNER_KEY_CACHE_PRELOAD_PARALLELISM at once.
+	 * Answers with the outcome of each label: loaded, cached (it already was) or the error.
+	 */
+	@POST
+	@Path("/cache/preload")
+	@HsmBound
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public String preloadKeys(String json) {
+		
+		List<String> labels;
+		try {
+			labels = json == null ? null : gson.fromJson(json, new TypeToken<List<String>>() {}.getType());
+		}catch(RuntimeException e) {
+			throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).entity("Expected a JSON array of labels. Message: "+e.getMessage()).build());
+		}
+		if( labels == null || labels.isEmpty() ) {
+			throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).entity("Expected a JSON array of labels").build());
+		}
+		return gson.toJson(preload(labels));
+	}
+	
 	@POST
 	@Path("/create/{key}")
+	@HsmBound
 	@Consumes(MediaType.TEXT_PLAIN)
 	@Produces(MediaType.TEXT_PLAIN)
 	public String createKey(@PathParam("key") String keyName, String jsonCertificate) {
@@ -267,28 +857,15 @@ public class XMLSigner {
         	
 			CertificateData certificateData = gson.fromJson(jsonCertificate, type);
 
-	        KeyPair kp = generateKeyPair(2048, keyName, Boolean.TRUE);
-	        logger.info("Created key pair on CloudHSM");
-	
-	        //
-	        // Generate a certificate and associate the chain with the private key.
-	        //
-	        Certificate self_signed_cert = Utils.generateCert(kp, certificateData);
-	        Certificate[] chain = new Certificate[1];
-	        chain[0] = self_signed_cert;
-	        PrivateKeyEntry entry = new PrivateKeyEntry(kp.getPrivate(), chain);
-	
-	        //
-	        // Set the entry using the label as the alias and save the store.
-	        // The alias must match the private key label.
-	        // 
-	        keyStoreHSM.setEntry(keyName, entry, pass);
+			String message = provisionKey(keyName, certificateData);
 	        
 	        //persisting metadata and certificate into local keyStore.
 	        //in base you want to use multiple containers this file must be shared (S3 or Parameter Store)
+	        long start = System.nanoTime();
 	        persistKeyStore();
+	        RequestTiming.record("persist", start);
 	        
-	        return "Created a key pair with the labels "+keyName+", "+keyName+":public";
+	        return message;
 	        
 		}catch(IllegalArgumentException ee){
 			throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND).entity(ee.getMessage()).build());
@@ -298,66 +875,204 @@ public class XMLSigner {
 		}
 	}
 	
+	/**
+	 * Creates the key pair of the label, taking it from the pool when there is one ready, and its self signed
+	 * certificate. The keystore is not persisted.
+	 */
+	private String provisionKey(String keyName, CertificateData certificateData) throws Exception {
+		
+		long start = System.nanoTime();
+		KeyPool.PooledKey pooled = keyPool.take();
+		KeyPair kp = pooled != null ? pooled.getKeyPair() : generateKeyPair(2048, keyName, Boolean.TRUE);
+		RequestTiming.record("keygen", pooled != null ? "pool" : "hsm", start);
+		String alias = pooled != null ? pooled.getLabel() : keyName;
+		logger.info(pooled != null ? "Took key pair "+alias+" from the pool" : "Created key pair on CloudHSM");
+
+        //
+        // Generate a certificate and associate the chain with the private key.
+        //
+        Certificate self_signed_cert = Utils.generateCert(kp, certificateData);
+        Certificate[] chain = new Certificate[1];
+        chain[0] = self_signed_cert;
+        PrivateKeyEntry entry = new PrivateKeyEntry(kp.getPrivate(), chain);
+
+        //
+        // Set the entry using the HSM label of the key as the alias.
+        // The alias must match the private key label.
+        // 
+        synchronized (keyStoreHSM) {
+        	keyStoreHSM.setEntry(alias, entry, pass);
+        	if( pooled != null ) {
+        		keyAliases.put(keyName, alias);
+        	}else {
+        		keyAliases.remove(keyName);
+        	}
+        }
+        //the label now points to a new key: forget the old key and everything signed with it
+        invalidate(keyName);
+        trustedKeys.put(keyName, self_signed_cert.getPublicKey());
+        
+        return pooled != null ? "Assigned the pre-generated key pair "+alias+" to the label "+keyName
+        						: "Created a key pair with the labels "+keyName+", "+keyName+":public";
+	}
+	
+	/**
+	 * Persists the keystore in a few seconds, once for all the keys created meanwhile. Once the service is
+	 * closing, it is persisted right away.
+	 */
+	private void persistLater() {
+		if( persistPending.compareAndSet(false, true) ) {
+			try {
+				persister.schedule(() -> { persistPending.set(false); persistKeyStore(); }, 2, TimeUnit.SECONDS);
+			}catch(RejectedExecutionException re) {
+				persistPending.set(false);
+				persistKeyStore();
+			}
+		}
+	}
+	
+	/**
+	 * Creates the keys of the job in the background. Poll /xml/jobs/{id} for its progress.
+	 */
+	@POST
+	@Path("/jobs/create")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response submitJob(String json) {
+		
+		try {
+			ProvisioningJob request = json == null ? null : gson.fromJson(json, ProvisioningJob.class);
+			ProvisioningJob job = provisioningJobs.submit(request == null ? null : request.getKeys());
+			return Response.status(Response.Status.ACCEPTED).entity(gson.toJson(job)).type(MediaType.APPLICATION_JSON).build();
+		}catch(IllegalArgumentException ie){
+			throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND).entity(ie.getMessage()).build());
+		}catch(Exception e){
+			logger.error(e);
+			throw new WebApplicationException(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Could not submit job. Message:"+e.getMessage()).build());
+		}
+	}
+	
+	@GET
+	@Path("/jobs")
+	@Produces(MediaType.APPLICATION_JSON)
+	public String listJobs() {
+		return gson.toJson(provisioningJobs.list());
+	}
+	
+	@GET
+	@Path("/jobs/{id}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public String getJob(@PathParam("id") String id) {
+		try {
+			return gson.toJson(provisioningJobs.get(id));
+		}catch(IllegalArgumentException ie){
+			throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND).entity(ie.getMessage()).build());
+		}
+	}
+	
+	@GET
+	@Path("/jobs/{id}/results")
+	@Produces(MediaType.APPLICATION_JSON)
+	public String getJobResults(@PathParam("id") String id) {
+		try {
+			return gson.toJson(provisioningJobs.results(id));
+		}catch(IllegalArgumentException ie){
+			throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND).entity(ie.getMessage()).build());
+		}
+	}
+	
 	@GET
 	@Path("/listKeys")
 	@Produces(MediaType.TEXT_PLAIN)
 	public String listKeys(){
 		logger.info("Listing CloudHSM keys");
 		try {
-			return Arrays.toString(Utils.listKeys(keyStoreHSM));
+			return labels().toString();
 		} catch (Exception e) {
 			throw new WebApplicationException(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Exception raised. Could not list keys. Reason: "+e.getMessage()).build());
 		}
 	}
 	
-	private Boolean validateSignedXML(String xml){
+	private Boolean validateSignedXML(String xml, KeySelector keySelector){
 	
+		SignerEvents.Scope event = SignerEvents.begin(SignerEvents.Type.VALIDATE,
+														keySelector instanceof TrustedKeySelector ? ((TrustedKeySelector) keySelector).label : null, xml.length());
 		try{
 	        // Instantiate the document to be validated
-	        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-	        dbf.setNamespaceAware(true);
-	        Document doc = dbf.newDocumentBuilder().parse( new InputSource(new StringReader(xml)) );
+			long start = System.nanoTime();
+	        Document doc = XmlFactories.parse(xml);
+	        RequestTiming.record("parse", start);
+	        start = System.nanoTime();
+	        Boolean valid = validateSignedXML(doc, keySelector);
+	        RequestTiming.record("validate", start);
+	        event.end(valid ? "valid" : "invalid");
+	        return valid;
+		}catch(Exception e){
+			event.end(SignerEvents.outcome(e));
+			e.printStackTrace();
+			throw new WebApplicationException(Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("Could not validate XML. Message:"+e.getMessage()).build());
+		}
+	}
+	
+	private Boolean validateSignedXML(Document doc, KeySelector keySelector) throws Exception {
 	
-	        // Find Signature element
+	        // Find Signature elements. Documents signed by element may have many
 	        NodeList nl =	doc.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
 	        if (nl.getLength() == 0) {
 	        		System.out.println("Cannot find Signature. XML Not Signed");
 	        		return Boolean.FALSE;
 	        }
 	
-	        XMLSignatureFactory fac = XMLSignatureFactory.getInstance("DOM");
-	        DOMValidateContext valContext = new DOMValidateContext (new KeyValueKeySelector(), nl.item(0));
-	        XMLSignature signature = fac.unmarshalXMLSignature(valContext);
-	        
-	        // Validate the XMLSignature 
-	        boolean coreValidity = signature.validate(valContext);
-	
-	        // Check core validation status
-	        if (coreValidity == false) {
-	            logger.error("Signature failed core validation");
-	            boolean sv = signature.getSignatureValue().validate(valContext);
-	            logger.info("signature validation status: " + sv);
-	            // check the validation status of each Reference
-	            @SuppressWarnings("rawtypes")
-				Iterator i = signature.getSignedInfo().getReferences().iterator();
-	            for (int j=0; i.hasNext(); j++) {
-	                boolean refValid =	((Reference) i.next()).validate(valContext);
-	                logger.info("ref["+j+"] validity status: " + refValid);
-	            }
-	            return Boolean.FALSE;
-	        } else {
-	            logger.info("Signature passed core validation");
+	        XMLSignatureFactory fac = XmlFactories.signatureFactory();
+	        for (int s = 0; s < nl.getLength(); s++) {
+		        DOMValidateContext valContext = new DOMValidateContext (keySelector, nl.item(s));
+		        if (keySelector instanceof TrustedKeySelector) {
+		        	verifyingProvider(((TrustedKeySelector) keySelector).label).useIn(valContext);
+		        }
+		        XMLSignature signature = fac.unmarshalXMLSignature(valContext);
+		        for (Object ref : signature.getSignedInfo().getReferences()) {
+		        	if (((Reference) ref).getURI() != null && ((Reference) ref).getURI().startsWith("#")) {
+		        		ElementReferences.registerAllIds(doc, valContext);
+		        		break;
+		        	}
+		        }
+		        
+		        // Validate the XMLSignature 
+		        boolean coreValidity;
+		        try {
+		        	coreValidity = signature.validate(valContext);
+		        } catch (XMLSignatureException xe) {
+		        	// signed by another label: not valid for this one
+		        	if (xe.getCause() instanceof KeyMismatchException) {
+		        		logger.info("Signature failed validation: "+xe.getCause().getMessage());
+		        		return Boolean.FALSE;
+		        	}
+		        	throw xe;
+		        }
+		
+		        // Check core validation status
+		        if (coreValidity == false) {
+		            logger.error("Signature failed core validation");
+		            boolean sv = signature.getSignatureValue().validate(valContext);
+		            logger.info("signature validation status: " + sv);
+		            // check the validation status of each Reference
+		            @SuppressWarnings("rawtypes")
+					Iterator i = signature.getSignedInfo().getReferences().iterator();
+		            for (int j=0; i.hasNext(); j++) {
+		                boolean refValid =	((Reference) i.next()).validate(valContext);
+		                logger.info("ref["+j+"] validity status: " + refValid);
+		            }
+		            return Boolean.FALSE;
+		        } else {
+		            logger.info("Signature passed core validation");
+		        }
 	        }
 			return Boolean.TRUE;
-		}catch(Exception e){
-			e.printStackTrace();
-			throw new WebApplicationException("Could not list keys. Message:"+e.getMessage(), Response.Status.INTERNAL_SERVER_ERROR);
-		}
 	}
 	
     /**
      * KeySelector which retrieves the public key out of the
-     * KeyValue element and returns it.
+     * KeyValue or X509Data element and returns it.
      * NOTE: If the key algorithm doesn't match signature algorithm,
      * then the public key will be ignored.
      */
@@ -387,12 +1102,66 @@ public class XMLSigner {
                     if (algEquals(sm.getAlgorithm(), pk.getAlgorithm())) {
                         return new SimpleKeySelectorResult(pk);
                     }
+                } else if (xmlStructure instanceof X509Data) {
+                	for (Object content : ((X509Data)xmlStructure).getContent()) {
+                		if (content instanceof X509Certificate) {
+                			PublicKey pk = ((X509Certificate)content).getPublicKey();
+                			if (algEquals(sm.getAlgorithm(), pk.getAlgorithm())) {
+                				return new SimpleKeySelectorResult(pk);
+                			}
+                		}
+                	}
                 }
             }
-            throw new KeySelectorException("No KeyValue element found!");
+            throw new KeySelectorException("No KeyValue or X509Certificate element found!");
         }
     }
     
+    /**
+     * KeySelector which returns the trusted public key of a label, taken from the keystore.
+     * A KeyName in the document, when present, must match the label.
+     */
+    private static class TrustedKeySelector extends KeySelector {
+    	
+    	private final String label;
+    	private final PublicKey pk;
+    	
+    	TrustedKeySelector(String label, PublicKey pk) {
+    		this.label = label;
+    		this.pk = pk;
+    	}
+    	
+        public KeySelectorResult select(KeyInfo keyInfo,
+                                        KeySelector.Purpose purpose,
+                                        AlgorithmMethod method,
+                                        XMLCryptoContext context) throws KeySelectorException {
+        	
+            if (keyInfo != null) {
+            	for (Object xmlStructure : keyInfo.getContent()) {
+            		if (xmlStructure instanceof KeyName && !label.equals(((KeyName) xmlStructure).getName())) {
+            			throw new KeyMismatchException("KeyName "+((KeyName) xmlStructure).getName()+" does not match label "+label);
+            		}
+            	}
+            }
+            if (!algEquals(((SignatureMethod) method).getAlgorithm(), pk.getAlgorithm())) {
+            	throw new KeyMismatchException("Key of label "+label+" does not match signature algorithm");
+            }
+            return new SimpleKeySelectorResult(pk);
+        }
+    }
+    
+    /**
+     * The document was not signed with the key of the label, it is answered as not valid instead of as an error.
+     */
+    private static class KeyMismatchException extends KeySelectorException {
+    	
+		private static final long serialVersionUID = 1L;
+
+		KeyMismatchException(String message) {
+    		super(message);
+    	}
+    }
+    
     static boolean algEquals(String algURI, String algName) {
 
         if (algName.equalsIgnoreCase("DSA") &&
@@ -416,12 +1185,38 @@ public class XMLSigner {
         public Key getKey() { return pk; }
     }
 	
- 	private String signXML(String xml, String keyName) throws Exception {
+ 	private String signXML(String xml, String keyName, SignOptions options) throws Exception {
+ 		
+ 		SignerEvents.Scope event = SignerEvents.begin(SignerEvents.Type.SIGN, keyName, xml.length());
+ 		try {
+ 			String signed = signXMLDocument(xml, keyName, options);
+ 			event.end("signed");
+ 			return signed;
+ 		}catch(Exception e) {
+ 			event.end(SignerEvents.outcome(e));
+ 			throw e;
+ 		}
+ 	}
+ 	
+ 	private String signXMLDocument(String xml, String keyName, SignOptions options) throws Exception {
 		
-		XMLSignatureFactory fac = XMLSignatureFactory.getInstance("DOM");
-		ByteArrayOutputStream stream	=	null;
+		XMLSignatureFactory fac = XmlFactories.signatureFactory();
+
+		SigningKey key = getSigningKey(keyName);
+		KeyPair kp = key.getKeyPair();
+		KeyInfo ki = key.getKeyInfo(options.getKeyInfoStyle());
 
+		// parsed and serialized as characters: the document is never copied to an intermediate byte array
+		long start = System.nanoTime();
+		Document doc = XmlFactories.parse(xml);
+		RequestTiming.record("parse", start);
 
+		if( !options.isWholeDocument() ) {
+			return signElements(doc, keyName, kp, ki, options);
+		}
+		start = System.nanoTime();
+		long hsm = RequestTiming.hsmTotal();
+		
 		// Create a Reference to the enveloped document 
 		// (in this case we are signing the whole document, so the URI of "")
 		Reference ref = fac.newReference
@@ -433,48 +1228,269 @@ public class XMLSigner {
 
 		// Create the SignedInfo
 			SignedInfo si = fac.newSignedInfo
-			    (fac.newCanonicalizationMethod(CanonicalizationMethod.INCLUSIVE_WITH_COMMENTS, (C14NMethodParameterSpec) null), 
+			    (fac.newCanonicalizationMethod(options.getCanonicalization().getAlgorithm(), (C14NMethodParameterSpec) null), 
 			     fac.newSignatureMethod(XMLSigner.RSA_SHA256_W3C_ID, null),
 			     Collections.singletonList(ref));
-  
-		KeyPair kp = null;
-		if( (kp = cache.get(keyName)) == null){
-			kp	=	getKeyPairFromKeyStore(keyName);
-			if( kp == null){
-				throw new IllegalArgumentException("Label not found: "+keyName);
-			}
-			cache.put(keyName, kp);
-		}
-
-		KeyInfoFactory kif = fac.getKeyInfoFactory();
-		KeyValue kv = kif.newKeyValue(kp.getPublic());
-
-		KeyInfo ki = kif.newKeyInfo(Collections.singletonList(kv));
-
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-		
-		InputStream inputStream = new ByteArrayInputStream(xml.getBytes(Charset.forName("UTF-8")));
-		Document doc = dbf.newDocumentBuilder().parse(inputStream);
 
 		// Create a DOMSignContext and specify parent element where signature will be placed in the XML
 		DOMSignContext dsc = new DOMSignContext(kp.getPrivate(), doc.getDocumentElement());
+		hsmProvider(keyName).useIn(dsc);
 
 		// Create the XMLSignature (but don't sign it yet)
 		XMLSignature signature = fac.newXMLSignature(si, ki);
 
 		// Sign the XML
 		signature.sign(dsc);
+		RequestTiming.recordExcludingHsm("digest", start, hsm);
 
-		stream = new ByteArrayOutputStream();
-
-		TransformerFactory tf = TransformerFactory.newInstance();
-		Transformer trans = tf.newTransformer();
-		trans.transform(new DOMSource(doc), new StreamResult(stream));
+		if( options.getOutput() == SignatureOutput.VALUE ) {
+			DetachedSignature detached = new DetachedSignature();
+			detached.setKey(keyName);
+			detached.setSignatureValue(Base64.getEncoder().encodeToString(signature.getSignatureValue().getValue()));
+			detached.setDigestValue(Base64.getEncoder().encodeToString(ref.getDigestValue()));
+			detached.setCanonicalization(options.getCanonicalization().getAlgorithm());
+			return gson.toJson(detached);
+		}
+		
+		// the signature is appended as the last child of the document element
+		start = System.nanoTime();
+		Node result = options.getOutput() == SignatureOutput.SIGNATURE ? doc.getDocumentElement().getLastChild() : doc;
+		StringWriter writer = new StringWriter(xml.length() + 2048);
+		XmlFactories.serialize(result, writer);
+		RequestTiming.record("serialize", start);
 
-		return new String(stream.toByteArray());
+		return writer.toString();
 	}
  	
+ 	/**
+ 	 * Signs only the elements selected by Id or XPath, with one signature per element placed right after it
+ 	 * or a single signature with every reference placed at the end of the document element.
+ 	 */
+ 	private String signElements(Document doc, String keyName, KeyPair kp, KeyInfo ki, SignOptions options) throws Exception {
+ 		
+ 		XMLSignatureFactory fac = XmlFactories.signatureFactory();
+ 		long start = System.nanoTime();
+ 		long hsm = RequestTiming.hsmTotal();
+ 		boolean atRoot = options.getPlacement() == SignOptions.Placement.ROOT;
+ 		if( options.getOutput() == SignatureOutput.VALUE || (options.getOutput() == SignatureOutput.SIGNATURE && !atRoot) ) {
+ 			throw new InvalidOptionException("Output "+options.getOutput().getName()+" is not available for signatures with placement "+options.getPlacement());
+ 		}
+ 		
+ 		ElementReferences elements = ElementReferences.select(doc, options.getIds(), options.getXpaths());
+ 		List<Node> parents = new ArrayList<>();
+ 		if( atRoot ) {
+ 			parents.add(doc.getDocumentElement());
+ 		}else {
+ 			for( Element element : elements.getElements() ) {
+ 				if( element == doc.getDocumentElement() ) {
+ 					throw new InvalidOptionException("The document element can only be signed with placement root");
+ 				}
+ 				parents.add(element.getParentNode());
+ 			}
+ 		}
+ 		List<Reference> refs = elements.newReferences(fac, parents, options.getCanonicalization().withoutComments(), parallelDigest);
+ 		
+ 		// deeper elements first, so an element is signed after the signatures placed inside it
+ 		List<Integer> order = new ArrayList<>();
+ 		for( int i = 0; i < (atRoot ? 1 : refs.size()); i++ ) {
+ 			order.add(i);
+ 		}
+ 		order.sort(Comparator.comparingInt((Integer i) -> depth(elements.getElements().get(i))).reversed());
+ 		
+ 		Node signatureNode = null;
+ 		for( int i : order ) {
+ 			SignedInfo si = fac.newSignedInfo
+ 				    (fac.newCanonicalizationMethod(options.getCanonicalization().getAlgorithm(), (C14NMethodParameterSpec) null), 
+ 				     fac.newSignatureMethod(XMLSigner.RSA_SHA256_W3C_ID, null),
+ 				     atRoot ? refs : Collections.singletonList(refs.get(i)));
+ 			Element element = elements.getElements().get(i);
+ 			DOMSignContext dsc = atRoot || element.getNextSibling() == null ? new DOMSignContext(kp.getPrivate(), atRoot ? doc.getDocumentElement() : element.getParentNode())
+ 										: new DOMSignContext(kp.getPrivate(), element.getParentNode(), element.getNextSibling());
+ 			elements.registerIds(dsc);
+ 			hsmProvider(keyName).useIn(dsc);
+ 			fac.newXMLSignature(si, ki).sign(dsc);
+ 			signatureNode = atRoot ? doc.getDocumentElement().getLastChild() : element.getNextSibling();
+ 		}
+ 		
+ 		RequestTiming.recordExcludingHsm("digest", start, hsm);
+ 		
+ 		start = System.nanoTime();
+ 		StringWriter writer = new StringWriter();
+ 		XmlFactories.serialize(options.getOutput() == SignatureOutput.SIGNATURE ? signatureNode : doc, writer);
+ 		RequestTiming.record("serialize", start);
+ 		return writer.toString();
+ 	}
+ 	
+ 	private static int depth(Node node) {
+ 		int depth = 0;
+ 		while( (node = node.getParentNode()) != null ) {
+ 			depth++;
+ 		}
+ 		return depth;
+ 	}
+ 	
+ 	/**
+ 	 * Provider that schedules the signatures of the label on the HSM, see {@link HsmScheduler}.
+ 	 */
+ 	private HsmSignatureProvider hsmProvider(String label) {
+ 		return hsmProviders.computeIfAbsent(label, l -> new HsmSignatureProvider(l, hsmScheduler, signaturePool));
+ 	}
+ 	
+ 	/**
+ 	 * Provider that verifies the signatures of the label with its trusted key, see {@link VerifyingSignatureProvider}.
+ 	 */
+ 	private VerifyingSignatureProvider verifyingProvider(String label) {
+ 		return verifyingProviders.computeIfAbsent(label, l -> new VerifyingSignatureProvider(l, signaturePool));
+ 	}
+ 	
+ 	/**
+ 	 * Key of the label from the cache, loading it from the keystore on a miss.
+ 	 */
+ 	private SigningKey getSigningKey(String label) throws Exception {
+ 		
+ 		long start = System.nanoTime();
+ 		SigningKey key = cache.get(label);
+ 		if( key != null ) {
+ 			RequestTiming.record("key", "hit", start);
+ 		}else{
+ 			key = cache.load(label, this::loadSigningKey);
+ 			RequestTiming.record("key", "miss", start);
+ 		}
+ 		return key;
+ 	}
+ 	
+ 	private SigningKey loadSigningKey(String label) throws Exception {
+ 		
+ 		KeyPair kp	=	getKeyPairFromKeyStore(label);
+ 		if( kp == null){
+ 			throw new IllegalArgumentException("Label not found: "+label);
+ 		}
+ 		Certificate cert = keyStoreHSM.getCertificate(alias(label));
+ 		return new SigningKey(label, kp, cert instanceof X509Certificate ? (X509Certificate) cert : null);
+ 	}
+ 	
+ 	/**
+ 	 * Forgets the keys of the label, signing and public, the Signature objects initialised with them, the documents
+ 	 * signed with them and the data key wrapped by them, so nothing made with the old key is served again.
+ 	 */
+ 	private void invalidate(String label) {
+ 		cache.remove(label);
+ 		trustedKeys.remove(label);
+ 		signaturePool.invalidate(label);
+ 		resultCache.invalidate(label);
+ 		dataKeys.rotate(label);
+ 	}
+ 	
+ 	/**
+ 	 * Loads the signing and public keys of the labels, SIGNER_KEY_CACHE_PRELOAD_PARALLELISM at once.
+ 	 * 
+ 	 * @return the outcome of each label: loaded, cached or the error
+ 	 */
+ 	Map<String, String> preload(Collection<String> labels) {
+ 		
+ 		Map<String, String> outcomes = new ConcurrentHashMap<>();
+ 		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(preloadParallelism, labels.size())), new NamedThreadFactory("signer-preload-"));
+ 		try {
+ 			for( String label : new LinkedHashSet<>(labels) ) {
+ 				executor.execute(() -> {
+ 					try {
+ 						if( cache.contains(label) ) {
+ 							outcomes.put(label, "cached");
+ 							return;
+ 						}
+ 						SigningKey key = cache.load(label, this::loadSigningKey);
+ 						trustedKeys.put(label, key.getKeyPair().getPublic());
+ 						outcomes.put(label, "loaded");
+ 					}catch(Exception e) {
+ 						outcomes.put(label, "error: "+e.getMessage());
+ 					}
+ 				});
+ 			}
+ 		}finally {
+ 			executor.shutdown();
+ 		}
+ 		try {
+ 			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+ 		}catch(InterruptedException ie) {
+ 			Thread.currentThread().interrupt();
+ 		}
+ 		Map<String, String> ordered = new LinkedHashMap<>();
+ 		for( String label : labels ) {
+ 			ordered.put(label, outcomes.getOrDefault(label, "not loaded"));
+ 		}
+ 		return ordered;
+ 	}
+ 	
+ 	/**
+ 	 * Preloads the keys of SIGNER_WARMUP_LABELS and of the pinned labels, then signs and validates
+ 	 * SIGNER_WARMUP_ITERATIONS synthetic documents with the first label loaded, so the JIT, the XML factories and
+ 	 * the key caches are warm before the service is reported ready. Failures are logged and do not keep it from
+ 	 * becoming ready, nor does a warm-up running longer than SIGNER_WARMUP_TIMEOUT seconds.
+ 	 */
+ 	void warmUp() {
+ 		
+ 		Readiness.set(Readiness.State.WARMING_UP);
+ 		long start = System.currentTimeMillis();
+ 		long deadline = start + SignerConfig.getLong("SIGNER_WARMUP_TIMEOUT", 120) * 1000;
+ 		Set<String> labels = new LinkedHashSet<>(labelList(SignerConfig.getString("SIGNER_WARMUP_LABELS", "")));
+ 		labels.addAll(cache.getPinned());
+ 		String label = null;
+ 		if( !labels.isEmpty() ) {
+ 			Map<String, String> outcomes = preload(labels);
+ 			logger.info("Warm-up loaded the keys of "+outcomes);
+ 			for( Map.Entry<String, String> outcome : outcomes.entrySet() ) {
+ 				if( label == null && !outcome.getValue().startsWith("error") ) {
+ 					label = outcome.getKey();
+ 				}
+ 			}
+ 		}
+ 		int iterations = SignerConfig.getInt("SIGNER_WARMUP_ITERATIONS", 200);
+ 		int done = 0;
+ 		if( label == null && iterations > 0 ) {
+ 			logger.info("No key loaded to warm up with, skipping the warm-up signatures. Set SIGNER_WARMUP_LABELS.");
+ 		}
+ 		try {
+ 			for( ; label != null && done < iterations && System.currentTimeMillis() < deadline; done++ ) {
+ 				String signed = signDocument(warmUpDocument(done), label);
+ 				if( !validateSignedXML(signed, new TrustedKeySelector(label, getTrustedKey(label))) ) {
+ 					throw new IllegalStateException("Warm-up signature of "+label+" did not validate");
+ 				}
+ 			}
+ 		}catch(Exception e) {
+ 			logger.error("Warm-up stopped after "+done+" signatures. Message: "+e.getMessage());
+ 		}
+ 		logger.info("Warm-up took "+(System.currentTimeMillis() - start)+" ms, "+done+" documents signed and validated.");
+ 		if( Readiness.set(Readiness.State.WARMING_UP, Readiness.State.READY) ) {
+ 			logger.info("Ready.");
+ 		}
+ 	}
+ 	
+ 	/**
+ 	 * A small document, a different one each iteration.
+ 	 */
+ 	private static String warmUpDocument(int iteration) {
+ 		
+ 		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><warmup id=\"").append(iteration).append("\">");
+ 		for( int i = 0; i < 20; i++ ) {
+ 			sb.append("<item n=\"").append(i).append("\">").append(iteration * 31 + i).append("</item>");
+ 		}
+ 		return sb.append("</warmup>").toString();
+ 	}
+ 	
+ 	/**
+ 	 * Labels of a comma separated list, e.g. SIGNER_KEY_CACHE_PINNED.
+ 	 */
+ 	static List<String> labelList(String list) {
+ 		
+ 		List<String> labels = new ArrayList<>();
+ 		for( String label : list.split(",") ) {
+ 			if( !"".equals(label.trim()) ) {
+ 				labels.add(label.trim());
+ 			}
+ 		}
+ 		return labels;
+ 	}
+ 	
  	/**
  	 * Uses the KeyStore to getKeyPair and sign content.
  	 * 
@@ -483,11 +1499,15 @@ public class XMLSigner {
  	 */
  	public KeyPair getKeyPairFromKeyStore(String label) throws Exception{
 
- 		PrivateKeyEntry keyEntry = (PrivateKeyEntry)keyStoreHSM.getEntry(label,pass);
+ 		SignerEvents.Scope event = SignerEvents.begin(SignerEvents.Type.KEY_LOAD, label, 0);
+ 		PrivateKeyEntry keyEntry = (PrivateKeyEntry)keyStoreHSM.getEntry(alias(label),pass);
  		if( keyEntry == null ){
+ 			event.end("not found");
  			throw new RuntimeException("The key label is not created in the HSM: "+label);
  		}
- 		return new KeyPair( keyStoreHSM.getCertificate(label).getPublicKey(), keyEntry.getPrivateKey() );	
+ 		KeyPair kp = new KeyPair( keyStoreHSM.getCertificate(alias(label)).getPublicKey(), keyEntry.getPrivateKey() );
+ 		event.end("loaded");
+ 		return kp;	
  	}
  	
  	public KeyPair getKeyPairUsingHandles(long privateHandle, long publicHandle) throws Exception {
@@ -519,10 +1539,30 @@ public class XMLSigner {
         return keyPairGen.generateKeyPair();
     }
     
-    public void finalize() {
+    /**
+     * Last step of the shutdown, once the HTTP requests are drained: waits up to timeout milliseconds for the
+     * keys of the provisioning jobs, persists the keystore when keys were created since it was last persisted,
+     * then logs out of the HSM and stops the client process.
+     */
+    void close(long timeout) {
     	
-    		Utils.logout();
+    	long deadline = System.currentTimeMillis() + timeout;
+    	keyPool.stop(Math.max(0, deadline - System.currentTimeMillis()));
+    	try {
+    		provisioningJobs.shutdown(Math.max(0, deadline - System.currentTimeMillis()));
+    		//a persist already scheduled still runs, keys created but not persisted would lose their label
+    		persister.shutdown();
+    		if( !persister.awaitTermination(Math.max(5000, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS) ) {
+    			logger.error("Keystore still being persisted, logging out of the HSM anyway");
+    		}
+    	}catch(InterruptedException ie) {
+    		Thread.currentThread().interrupt();
+    	}
+    	batchPool.shutdown();
+    	Utils.logout();
+    	if( pr != null ) {
     		pr.destroyForcibly();
+    	}
     }
  	
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.xml.crypto.dsig.XMLSignature;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * W3C XML Encryption of elements. Each element is replaced by an EncryptedData of type Element, encrypted with
+ * AES-256-GCM (http://www.w3.org/2009/xmlenc11#aes256-gcm, the 12 bytes IV followed by the ciphertext and the tag)
+ * and carrying the data key in an EncryptedKey wrapped with RSA-OAEP (http://www.w3.org/2001/04/xmlenc#rsa-oaep-mgf1p)
+ * whose KeyInfo names the label. See {@link DataKeys} for the data keys.
+ *
+ * @author lddecaro@amazon.com
+ */
+class XmlEncryption {
+
+	static final String XMLENC_NS		=	"http://www.w3.org/2001/04/xmlenc#";
+	static final String TYPE_ELEMENT	=	XMLENC_NS+"Element";
+	static final String AES256_GCM		=	"http://www.w3.org/2009/xmlenc11#aes256-gcm";
+	static final String RSA_OAEP		=	XMLENC_NS+"rsa-oaep-mgf1p";
+	private static final String SHA1	=	"http://www.w3.org/2000/09/xmldsig#sha1";
+	private static final int IV_BYTES	=	12;
+	private static final int TAG_BITS	=	128;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	/** Data key of an EncryptedKey. */
+	interface KeyResolver {
+		SecretKey resolve(String label, byte[] wrapped) throws Exception;
+	}
+
+	private XmlEncryption() {}
+
+	/**
+	 * Replaces the elements by their EncryptedData. Elements inside another selected element are encrypted with it.
+	 */
+	static void encrypt(List<Element> elements, String label, DataKeys.DataKey key) throws Exception {
+
+		for (Element element : elements) {
+			if (!insideAnyOf(element, elements)) {
+				encrypt(element, label, key);
+			}
+		}
+	}
+
+	private static void encrypt(Element element, String label, DataKeys.DataKey key) throws Exception {
+
+		StringWriter plaintext = new StringWriter();
+		XmlFactories.serializeFragment(element, plaintext);
+		byte[] iv = new byte[IV_BYTES];
+		random.nextBytes(iv);
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, key.getKey(), new GCMParameterSpec(TAG_BITS, iv));
+		byte[] ciphertext = cipher.doFinal(plaintext.toString().getBytes(StandardCharsets.UTF_8));
+		byte[] value = new byte[iv.length + ciphertext.length];
+		System.arraycopy(iv, 0, value, 0, iv.length);
+		System.arraycopy(ciphertext, 0, value, iv.length, ciphertext.length);
+
+		Document doc = element.getOwnerDocument();
+		Element encryptedData = xenc(doc, "EncryptedData");
+		encryptedData.setAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns:xenc", XMLENC_NS);
+		encryptedData.setAttribute("Type", TYPE_ELEMENT);
+		encryptedData.appendChild(encryptionMethod(doc, AES256_GCM));
+
+		Element encryptedKey = xenc(doc, "EncryptedKey");
+		Element wrapMethod = encryptionMethod(doc, RSA_OAEP);
+		Element digestMethod = dsig(doc, "DigestMethod");
+		digestMethod.setAttribute("Algorithm", SHA1);
+		wrapMethod.appendChild(digestMethod);
+		encryptedKey.appendChild(wrapMethod);
+		Element keyName = dsig(doc, "KeyName");
+		keyName.setTextContent(label);
+		encryptedKey.appendChild(dsig(doc, "KeyInfo")).appendChild(keyName);
+		encryptedKey.appendChild(cipherData(doc, key.getWrapped()));
+
+		Element keyInfo = dsig(doc, "KeyInfo");
+		keyInfo.setAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns:ds", XMLSignature.XMLNS);
+		keyInfo.appendChild(encryptedKey);
+		encryptedData.appendChild(keyInfo);
+		encryptedData.appendChild(cipherData(doc, value));
+
+		element.getParentNode().replaceChild(encryptedData, element);
+	}
+
+	/**
+	 * Replaces every EncryptedData of the document by the element it encrypts.
+	 *
+	 * @return the number of elements decrypted
+	 * @throws IllegalArgumentException if an EncryptedData is not one this service creates, or it was altered
+	 */
+	static int decrypt(Document doc, KeyResolver keys) throws Exception {
+
+		NodeList found = doc.getElementsByTagNameNS(XMLENC_NS, "EncryptedData");
+		List<Element> encrypted = new ArrayList<>();
+		for (int i = 0; i < found.getLength(); i++) {
+			encrypted.add((Element) found.item(i));
+		}
+		for (Element encryptedData : encrypted) {
+			String type = encryptedData.getAttribute("Type");
+			if (!type.isEmpty() && !TYPE_ELEMENT.equals(type)) {
+				throw new IllegalArgumentException("Only EncryptedData of type Element is supported: "+type);
+			}
+			algorithm(encryptedData, AES256_GCM);
+			Element encryptedKey = child(child(encryptedData, XMLSignature.XMLNS, "KeyInfo"), XMLENC_NS, "EncryptedKey");
+			algorithm(encryptedKey, RSA_OAEP);
+			String label = child(child(encryptedKey, XMLSignature.XMLNS, "KeyInfo"), XMLSignature.XMLNS, "KeyName").getTextContent().trim();
+			byte[] value = cipherValue(encryptedData);
+			if (value.length <= IV_BYTES) {
+				throw new IllegalArgumentException("EncryptedData too short to carry an IV and a tag");
+			}
+			String plaintext;
+			try {
+				SecretKey key = keys.resolve(label, cipherValue(encryptedKey));
+				Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+				cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, value, 0, IV_BYTES));
+				plaintext = new String(cipher.doFinal(value, IV_BYTES, value.length - IV_BYTES), StandardCharsets.UTF_8);
+			}catch(BadPaddingException e) {
+				// AEADBadTagException of a tampered value, or a data key wrapped by another key: bad input, not a fault
+				throw new IllegalArgumentException("EncryptedData could not be decrypted, it was altered or encrypted with another key of "+label);
+			}
+
+			Node element = doc.importNode(XmlFactories.parse(plaintext).getDocumentElement(), true);
+			encryptedData.getParentNode().replaceChild(element, encryptedData);
+		}
+		return encrypted.size();
+	}
+
+	private static boolean insideAnyOf(Element element, List<Element> elements) {
+		for (Node parent = element.getParentNode(); parent != null; parent = parent.getParentNode()) {
+			if (elements.contains(parent)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Element xenc(Document doc, String name) {
+		return doc.createElementNS(XMLENC_NS, "xenc:"+name);
+	}
+
+	private static Element dsig(Document doc, String name) {
+		return doc.createElementNS(XMLSignature.XMLNS, "ds:"+name);
+	}
+
+	private static Element encryptionMethod(Document doc, String algorithm) {
+		Element method = xenc(doc, "EncryptionMethod");
+		method.setAttribute("Algorithm", algorithm);
+		return method;
+	}
+
+	private static Element cipherData(Document doc, byte[] value) {
+		Element cipherValue = xenc(doc, "CipherValue");
+		cipherValue.setTextContent(Base64.getEncoder().encodeToString(value));
+		Element cipherData = xenc(doc, "CipherData");
+		cipherData.appendChild(cipherValue);
+		return cipherData;
+	}
+
+	private static Element child(Element parent, String namespace, String name) {
+		for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node instanceof Element && namespace.equals(node.getNamespaceURI()) && name.equals(node.getLocalName())) {
+				return (Element) node;
+			}
+		}
+		throw new IllegalArgumentException(parent.getLocalName()+" without "+name);
+	}
+
+	private static void algorithm(Element parent, String expected) {
+		String algorithm = child(parent, XMLENC_NS, "EncryptionMethod").getAttribute("Algorithm");
+		if (!expected.equals(algorithm)) {
+			throw new IllegalArgumentException("Unsupported algorithm in "+parent.getLocalName()+": "+algorithm);
+		}
+	}
+
+	private static byte[] cipherValue(Element parent) {
+		String value = child(child(parent, XMLENC_NS, "CipherData"), XMLENC_NS, "CipherValue").getTextContent();
+		try {
+			return Base64.getMimeDecoder().decode(value);
+		}catch(IllegalArgumentException e) {
+			throw new IllegalArgumentException("CipherValue of "+parent.getLocalName()+" is not valid Base64");
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import java.io.StringReader;
+import java.io.Writer;
+
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSOutput;
+import org.w3c.dom.ls.LSSerializer;
+import org.xml.sax.InputSource;
+
+/**
+ * Per thread instances of the XML factories used to sign and validate. Looking up the JAXP and JSR 105
+ * implementations and creating builders is expensive compared to a small document, and none of these
+ * objects is thread safe, so each thread keeps and resets its own.
+ *
+ * Documents are parsed and serialized by the backends chosen with SIGNER_XML_PARSER (dom, the JAXP DocumentBuilder,
+ * or stax, see {@link StaxDomBuilder}) and SIGNER_XML_SERIALIZER (transformer, the JAXP identity Transformer, or
+ * ls, the DOM Level 3 LSSerializer that writes the tree directly without the transformation pipeline).
+ *
+ * @author lddecaro@amazon.com
+ */
+class XmlFactories {
+
+	private static final Logger	logger	=	LogManager.getLogger(XmlFactories.class);
+
+	enum Parser { DOM, STAX }
+	enum Serializer { TRANSFORMER, LS }
+
+	static final Parser PARSER = backend(Parser.class, "SIGNER_XML_PARSER", Parser.DOM);
+	static final Serializer SERIALIZER = backend(Serializer.class, "SIGNER_XML_SERIALIZER", Serializer.TRANSFORMER);
+
+	private static final ThreadLocal<DocumentBuilder> documentBuilders = ThreadLocal.withInitial(() -> {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		try {
+			// a deferred DOM is expanded while it is read, so it cannot be read by many threads at once.
+			// Signing reads the whole tree anyway.
+			dbf.setFeature("http://apache.org/xml/features/dom/defer-node-expansion", false);
+		} catch (ParserConfigurationException e) {
+			// not a Xerces parser, its DOM is not deferred
+		}
+		try {
+			return dbf.newDocumentBuilder();
+		} catch (ParserConfigurationException e) {
+			throw new IllegalStateException("Could not create a namespace aware DocumentBuilder", e);
+		}
+	});
+
+	private static final ThreadLocal<Transformer> transformers = ThreadLocal.withInitial(() -> {
+		try {
+			return TransformerFactory.newInstance().newTransformer();
+		} catch (TransformerConfigurationException e) {
+			throw new IllegalStateException("Could not create an identity Transformer", e);
+		}
+	});
+
+	private static final ThreadLocal<LSSerializer> serializers = ThreadLocal.withInitial(() -> {
+		LSSerializer serializer = ((DOMImplementationLS) documentBuilders.get().getDOMImplementation()).createLSSerializer();
+		// keep the attributes with default values, as the Transformer does
+		serializer.getDomConfig().setParameter("discard-default-content", Boolean.FALSE);
+		return serializer;
+	});
+
+	private static final ThreadLocal<XMLSignatureFactory> signatureFactories = ThreadLocal.withInitial(() -> XMLSignatureFactory.getInstance("DOM"));
+
+	private XmlFactories() {}
+
+	static DocumentBuilder documentBuilder() {
+		DocumentBuilder db = documentBuilders.get();
+		db.reset();
+		return db;
+	}
+
+	static Transformer transformer() {
+		Transformer trans = transformers.get();
+		trans.reset();
+		return trans;
+	}
+
+	static XMLSignatureFactory signatureFactory() {
+		return signatureFactories.get();
+	}
+
+	/**
+	 * Parses the document with the configured parser.
+	 */
+	static Document parse(String xml) throws Exception {
+		return parse(xml, PARSER);
+	}
+
+	static Document parse(String xml, Parser parser) throws Exception {
+		if (parser == Parser.STAX) {
+			return StaxDomBuilder.parse(xml, documentBuilder().newDocument());
+		}
+		return documentBuilder().parse(new InputSource(new StringReader(xml)));
+	}
+
+	/**
+	 * Writes the node, with an XML declaration, with the configured serializer.
+	 */
+	static void serialize(Node node, Writer writer) throws Exception {
+		serialize(node, writer, SERIALIZER);
+	}
+
+	static void serialize(Node node, Writer writer, Serializer serializer) throws Exception {
+		if (serializer == Serializer.LS) {
+			DOMImplementationLS ls = (DOMImplementationLS) documentBuilders.get().getDOMImplementation();
+			LSOutput output = ls.createLSOutput();
+			output.setCharacterStream(writer);
+			output.setEncoding("UTF-8");
+			serializers.get().write(node, output);
+			return;
+		}
+		transformer().transform(new DOMSource(node), new StreamResult(writer));
+	}
+
+	/**
+	 * Writes the element without XML declaration, as the plaintext of an encrypted element. Always done by the
+	 * Transformer, which declares the namespaces the element takes from its ancestors.
+	 */
+	static void serializeFragment(Node node, Writer writer) throws Exception {
+		Transformer trans = transformer();
+		trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+		trans.transform(new DOMSource(node), new StreamResult(writer));
+	}
+
+	private static <T extends Enum<T>> T backend(Class<T> type, String name, T defaultValue) {
+		String value = SignerConfig.getString(name, defaultValue.name());
+		try {
+			T backend = Enum.valueOf(type, value.toUpperCase());
+			logger.info("Using XML "+type.getSimpleName().toLowerCase()+" "+backend.name().toLowerCase());
+			return backend;
+		}catch(IllegalArgumentException ie) {
+			logger.info("Value of "+name+" is not a valid "+type.getSimpleName().toLowerCase()+" ["+value+"]. Reverting to default ["+defaultValue.name().toLowerCase()+"].");
+			return defaultValue;
+		}
+	}
+}
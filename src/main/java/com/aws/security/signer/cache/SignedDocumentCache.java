@@ -0,0 +1,186 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content addressed cache of signed documents. Entries are keyed by the key label and the SHA-256 of the
+ * document received, so a retry of a byte-identical document signed with the same key returns the output
+ * produced before without another HSM operation. This only holds because the signature profile is deterministic
+ * (RSA PKCS#1 v1.5 and a canonicalization that is part of the sign options in the key).
+ *
+ * The cache is bounded by number of entries and by an estimate of the bytes held. Least recently used entries
+ * are evicted first and entries older than the ttl are never returned.
+ *
+ * @author lddecaro@amazon.com
+ */
+public class SignedDocumentCache {
+
+	private final LinkedHashMap<String, CacheObject> signedCache = new LinkedHashMap<>(16, 0.75f, true);
+	private final int maxItems;
+	private final long maxBytes;
+	private final long ttl;
+	private long bytes = 0;
+
+	private final AtomicLong hits		= new AtomicLong();
+	private final AtomicLong misses		= new AtomicLong();
+	private final AtomicLong evictions	= new AtomicLong();
+
+	/**
+	 * @param chosenTTL. ttl in seconds for the objects in the cache.
+	 * @param maxItems. Max Items in the cache. Zero disables the cache.
+	 * @param maxBytes. Max amount of memory, in bytes, held by the signed documents.
+	 */
+	public SignedDocumentCache(long chosenTTL, int maxItems, long maxBytes) {
+		this.ttl = chosenTTL * 1000;
+		this.maxItems = maxItems;
+		this.maxBytes = maxBytes;
+	}
+
+	public boolean isEnabled() {
+		return maxItems > 0 && maxBytes > 0;
+	}
+
+	/**
+	 * SHA-256 of the document, hex encoded.
+	 */
+	public static String fingerprint(String document) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(document.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	public String get(String label, String fingerprint) {
+		if (!isEnabled()) {
+			return null;
+		}
+		synchronized (signedCache) {
+			String key = key(label, fingerprint);
+			CacheObject c = signedCache.get(key);
+			if (c != null && System.currentTimeMillis() - c.created > ttl) {
+				remove(key);
+				c = null;
+			}
+			if (c == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			return c.value;
+		}
+	}
+
+	public void put(String label, String fingerprint, String signed) {
+		if (!isEnabled()) {
+			return;
+		}
+		CacheObject c = new CacheObject(label, signed);
+		if (c.size > maxBytes) {
+			return;
+		}
+		synchronized (signedCache) {
+			CacheObject old = signedCache.put(key(label, fingerprint), c);
+			if (old != null) {
+				bytes -= old.size;
+			}
+			bytes += c.size;
+			Iterator<CacheObject> itr = signedCache.values().iterator();
+			while ((bytes > maxBytes || signedCache.size() > maxItems) && itr.hasNext()) {
+				bytes -= itr.next().size;
+				itr.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Drops every document signed with the label. Must be called whenever the key behind the label changes.
+	 */
+	public void invalidate(String label) {
+		synchronized (signedCache) {
+			Iterator<CacheObject> itr = signedCache.values().iterator();
+			while (itr.hasNext()) {
+				CacheObject c = itr.next();
+				if (c.label.equals(label)) {
+					bytes -= c.size;
+					itr.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops every document, when the keys of the labels may have changed.
+	 */
+	public void invalidateAll() {
+		synchronized (signedCache) {
+			signedCache.clear();
+			bytes = 0;
+		}
+	}
+
+	public Map<String, Object> stats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		synchronized (signedCache) {
+			stats.put("enabled", isEnabled());
+			stats.put("size", signedCache.size());
+			stats.put("bytes", bytes);
+		}
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("evictions", evictions.get());
+		return stats;
+	}
+
+	private void remove(String key) {
+		CacheObject c = signedCache.remove(key);
+		if (c != null) {
+			bytes -= c.size;
+		}
+	}
+
+	private static String key(String label, String fingerprint) {
+		return label + '\u0000' + fingerprint;
+	}
+
+	private static class CacheObject {
+
+		private final long created = System.currentTimeMillis();
+		private final String label;
+		private final String value;
+		// chars are two bytes in the heap, plus a rough overhead for the entry itself
+		private final long size;
+
+		private CacheObject(String label, String value) {
+			this.label = label;
+			this.value = value;
+			this.size = 2L * value.length() + 128;
+		}
+	}
+}
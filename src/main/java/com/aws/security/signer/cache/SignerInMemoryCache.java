@@ -15,18 +15,55 @@
 package com.aws.security.signer.cache;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.collections4.MapIterator;
 import org.apache.commons.collections4.map.LRUMap;
+
+import com.aws.security.signer.SignerEvents;
  
 /**
+ * LRU cache whose entries expire ttl seconds after their last access or, with {@link Expiry#WRITE}, after they
+ * were put. Pinned keys are neither evicted nor expired, they only leave the cache when removed.
+ *
  * @author lddecaro@amazon.com
  */
  
 public class SignerInMemoryCache<K, T> {
  
+	/**
+	 * ACCESS expires the entries not read for ttl seconds, WRITE the entries put more than ttl seconds ago.
+	 */
+	public enum Expiry { ACCESS, WRITE }
+	
+	/**
+	 * Loads the value of a key missing from the cache, see {@link SignerInMemoryCache#get(Object, Loader)}.
+	 */
+	public interface Loader<K, T> {
+		T load(K key) throws Exception;
+	}
+	
 	private LRUMap<K, CacheObject> signerCache;
     private long ttl;
+    private final String name;
+    private final int maxItems;
+    private final Expiry expiry;
+    private final Set<K> pinned;
+    
+    private final AtomicLong hits			= new AtomicLong();
+    private final AtomicLong misses			= new AtomicLong();
+    private final AtomicLong loads			= new AtomicLong();
+    private final AtomicLong loadTime		= new AtomicLong();
+    private final AtomicLong maxLoadTime	= new AtomicLong();
+    private final AtomicLong evictions		= new AtomicLong();
+    private final AtomicLong expirations	= new AtomicLong();
+    private final AtomicLong invalidations	= new AtomicLong();
  
     /**
      * 
@@ -36,10 +73,41 @@ public class SignerInMemoryCache<K, T> {
      * @author lddecaro@amazon.com
      */
     public SignerInMemoryCache(long chosenTTL, final long scanInterval, int maxItems) {
+    	this("cache", chosenTTL, scanInterval, maxItems);
+    }
+    
+    /**
+     * @param name. Name of the cache in the JFR events of its loads and evictions, see {@link SignerEvents}.
+     */
+    public SignerInMemoryCache(String name, long chosenTTL, final long scanInterval, int maxItems) {
+    	this(name, chosenTTL, scanInterval, maxItems, Expiry.ACCESS, Collections.<K>emptySet());
+    }
+    
+    /**
+     * @param expiry. Whether the ttl counts from the last access or from the put.
+     * @param pinned. Keys never evicted nor expired. The cache may hold more than maxItems when they are many.
+     */
+    public SignerInMemoryCache(String name, long chosenTTL, final long scanInterval, int maxItems, Expiry expiry, Collection<K> pinned) {
     	
         this.ttl = chosenTTL * 1000;
+        this.name = name;
+        this.maxItems = maxItems;
+        this.expiry = expiry;
+        this.pinned = Collections.unmodifiableSet(new HashSet<>(pinned));
  
-        signerCache = new LRUMap<K, CacheObject>(maxItems);
+        //scans past the pinned entries for the least recently used one that can go
+        signerCache = new LRUMap<K, CacheObject>(maxItems, true) {
+        	private static final long serialVersionUID = 1L;
+        	@Override
+        	protected boolean removeLRU(LinkEntry<K, CacheObject> entry) {
+        		if( isPinned(entry.getKey()) ) {
+        			return false;
+        		}
+        		evictions.incrementAndGet();
+        		SignerEvents.cache(name, entry.getKey(), "lru");
+        		return true;
+        	}
+        };
  
         if (ttl > 0 && scanInterval > 0) {
  
@@ -51,7 +119,7 @@ public class SignerInMemoryCache<K, T> {
                         }
                         cleanup();
                     }                
-            });
+            }, "signer-cache-"+name);
  
             t.setDaemon(true);
             t.start();
@@ -62,23 +130,92 @@ public class SignerInMemoryCache<K, T> {
         synchronized (signerCache) {
             signerCache.put(key, new CacheObject(value));
         }
+        SignerEvents.cache(name, key, "load");
     }
  
     public T get(K key) {
+    	
+    	long now = System.currentTimeMillis();
+    	boolean expired = false;
         synchronized (signerCache) {
             CacheObject c = (CacheObject) signerCache.get(key);
-            if (c == null)
-                return null;
-            else {
-                c.setLastAccessed(System.currentTimeMillis());
+            if (c != null && isExpired(key, c, now)) {
+            	signerCache.remove(key);
+            	expired = true;
+            	c = null;
+            }
+            if (c != null) {
+                c.setLastAccessed(now);
+                hits.incrementAndGet();
                 return c.getValue();
             }
         }
+        misses.incrementAndGet();
+        if (expired) {
+        	expirations.incrementAndGet();
+        	SignerEvents.cache(name, key, "ttl");
+        }
+        return null;
+    }
+    
+    /**
+     * Value of the key, loaded and put in the cache on a miss, see {@link #load(Object, Loader)}.
+     */
+    public T get(K key, Loader<K, T> loader) throws Exception {
+    	
+    	T value = get(key);
+    	return value != null ? value : load(key, loader);
+    }
+    
+    /**
+     * Loads the value of the key and puts it in the cache. The loader runs outside of the lock of the cache,
+     * so a slow load does not hold the other keys, and its time is reported by {@link #stats()}.
+     */
+    public T load(K key, Loader<K, T> loader) throws Exception {
+    	
+    	long start = System.nanoTime();
+    	T value = loader.load(key);
+    	long elapsed = System.nanoTime() - start;
+    	loads.incrementAndGet();
+    	loadTime.addAndGet(elapsed);
+    	maxLoadTime.accumulateAndGet(elapsed, Math::max);
+    	put(key, value);
+    	return value;
     }
  
     public void remove(K key) {
+    	CacheObject c;
         synchronized (signerCache) {
-            signerCache.remove(key);
+            c = signerCache.remove(key);
+        }
+        if (c != null) {
+        	invalidations.incrementAndGet();
+        }
+        SignerEvents.cache(name, key, "remove");
+    }
+    
+    /**
+     * Removes every entry, the pinned ones included.
+     * 
+     * @return the number of entries removed
+     */
+    public int clear() {
+    	int size;
+    	synchronized (signerCache) {
+    		size = signerCache.size();
+    		signerCache.clear();
+    	}
+    	invalidations.addAndGet(size);
+    	SignerEvents.cache(name, "*", "remove");
+    	return size;
+    }
+ 
+    /**
+     * Whether the key is in the cache, without counting a hit or a miss nor touching its last access.
+     */
+    public boolean contains(K key) {
+        synchronized (signerCache) {
+            return signerCache.containsKey(key);
         }
     }
  
@@ -87,6 +224,14 @@ public class SignerInMemoryCache<K, T> {
             return signerCache.size();
         }
     }
+    
+    public boolean isPinned(K key) {
+    	return pinned.contains(key);
+    }
+    
+    public Set<K> getPinned() {
+    	return pinned;
+    }
  
     public void cleanup() {
  
@@ -104,7 +249,7 @@ public class SignerInMemoryCache<K, T> {
                 key = (K) itr.next();
                 c = (CacheObject) itr.getValue();
  
-                if (c != null && (now > (ttl + c.lastAccessed))) {
+                if (c != null && isExpired(key, c, now)) {
                     deleteKey.add(key);
                 }
             }
@@ -113,13 +258,49 @@ public class SignerInMemoryCache<K, T> {
             synchronized (signerCache) {
                 signerCache.remove(key);
             }
+            expirations.incrementAndGet();
+            SignerEvents.cache(name, key, "ttl");
             Thread.yield();
         }
     }
     
+    /**
+     * Size, policy, hit ratio, evictions and load times (in ms) of the cache.
+     */
+    public Map<String, Object> stats() {
+    	
+    	Map<String, Object> stats = new LinkedHashMap<>();
+    	long hit = hits.get();
+    	long miss = misses.get();
+    	long loaded = loads.get();
+    	stats.put("size", size());
+    	stats.put("maxItems", maxItems);
+    	stats.put("ttl", ttl / 1000);
+    	stats.put("expiry", expiry.name().toLowerCase());
+    	stats.put("pinned", pinned.size());
+    	stats.put("hits", hit);
+    	stats.put("misses", miss);
+    	stats.put("hitRatio", hit + miss == 0 ? 0 : (double) hit / (hit + miss));
+    	stats.put("loads", loaded);
+    	stats.put("avgLoadTimeMs", loaded == 0 ? 0 : loadTime.get() / loaded / 1000000.0);
+    	stats.put("maxLoadTimeMs", maxLoadTime.get() / 1000000.0);
+    	stats.put("evictions", evictions.get());
+    	stats.put("expirations", expirations.get());
+    	stats.put("invalidations", invalidations.get());
+    	return stats;
+    }
+    
+    private boolean isExpired(K key, CacheObject c, long now) {
+    	if (ttl <= 0 || isPinned(key)) {
+    		return false;
+    	}
+    	return now > ttl + (expiry == Expiry.WRITE ? c.created : c.lastAccessed);
+    }
+    
     protected class CacheObject {
     	
-        private long lastAccessed = System.currentTimeMillis();
+    	private final long created = System.currentTimeMillis();
+        private long lastAccessed = created;
         private T value;
  
         protected CacheObject(T value) {
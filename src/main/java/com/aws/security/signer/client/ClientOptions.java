@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer.client;
+
+/**
+ * Settings of a {@link SignerClient}. The defaults suit a service in the same region.
+ *
+ * @author lddecaro@amazon.com
+ */
+public class ClientOptions {
+
+	private int maxConnections = 16;
+	private int connectTimeoutMillis = 5000;
+	private int readTimeoutMillis = 30000;
+	private int maxAttempts = 4;
+	private long backoffMillis = 100;
+	private long maxBackoffMillis = 5000;
+	private int maxBatchSize = 0;
+	private long batchLingerMillis = 2;
+
+	public ClientOptions() {}
+
+	/**
+	 * Requests in flight at once, each on its own keep alive connection.
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+	public int getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+	public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+	public int getReadTimeoutMillis() {
+		return readTimeoutMillis;
+	}
+	public void setReadTimeoutMillis(int readTimeoutMillis) {
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
+	/**
+	 * Attempts of a call, the first one included, before its failure is returned.
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+	/**
+	 * Base of the exponential backoff between attempts, when the service did not send Retry-After.
+	 */
+	public long getBackoffMillis() {
+		return backoffMillis;
+	}
+	public void setBackoffMillis(long backoffMillis) {
+		this.backoffMillis = backoffMillis;
+	}
+	public long getMaxBackoffMillis() {
+		return maxBackoffMillis;
+	}
+	public void setMaxBackoffMillis(long maxBackoffMillis) {
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+	/**
+	 * Max signatures of the same key sent together to /xml/batch/sign/{key}. 0 or 1 sends each one on its own.
+	 */
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+	/**
+	 * Time a signature waits for others of the same key before its batch is sent, unless the batch fills up first.
+	 */
+	public long getBatchLingerMillis() {
+		return batchLingerMillis;
+	}
+	public void setBatchLingerMillis(long batchLingerMillis) {
+		this.batchLingerMillis = batchLingerMillis;
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.aws.security.signer.BatchDocument;
+import com.aws.security.signer.BatchResult;
+import com.google.gson.Gson;
+
+/**
+ * Groups the concurrent signatures of each key into one request to /xml/batch/sign/{key}. A batch is sent once it
+ * has maxBatchSize documents or lingerMillis after its first one, so a lone signature waits at most lingerMillis.
+ * A batch of one document goes to /xml/sign/{key}. Documents the service could not sign because the HSM queue of the
+ * key was full are signed again on their own, with the retries of the client.
+ *
+ * @author lddecaro@amazon.com
+ */
+class SignBatcher {
+
+	private final SignerClient client;
+	private final ScheduledExecutorService scheduler;
+	private final int maxBatchSize;
+	private final long lingerMillis;
+	private final Map<String, Batch> open = new HashMap<>();
+	private final Gson gson = new Gson();
+
+	SignBatcher(SignerClient client, ScheduledExecutorService scheduler, int maxBatchSize, long lingerMillis) {
+		this.client = client;
+		this.scheduler = scheduler;
+		this.maxBatchSize = maxBatchSize;
+		this.lingerMillis = lingerMillis;
+	}
+
+	CompletableFuture<String> sign(String keyName, String xml) {
+
+		CompletableFuture<String> result = new CompletableFuture<>();
+		Batch full = null;
+		synchronized (this) {
+			Batch batch = open.get(keyName);
+			if (batch == null) {
+				final Batch lingering = new Batch(keyName);
+				open.put(keyName, lingering);
+				scheduler.schedule(() -> send(lingering), lingerMillis, TimeUnit.MILLISECONDS);
+				batch = lingering;
+			}
+			batch.documents.add(xml);
+			batch.results.add(result);
+			if (batch.documents.size() >= maxBatchSize) {
+				full = batch;
+			}
+		}
+		if (full != null) {
+			send(full);
+		}
+		return result;
+	}
+
+	/**
+	 * Sends the batches still open.
+	 */
+	void flush() {
+		List<Batch> batches;
+		synchronized (this) {
+			batches = new ArrayList<>(open.values());
+		}
+		batches.forEach(this::send);
+	}
+
+	private void send(Batch batch) {
+
+		synchronized (this) {
+			if (batch.sent) {
+				return;
+			}
+			batch.sent = true;
+			open.remove(batch.keyName, batch);
+		}
+		if (batch.documents.size() == 1) {
+			signAlone(batch, 0);
+			return;
+		}
+		StringBuilder ndjson = new StringBuilder();
+		for (int i = 0; i < batch.documents.size(); i++) {
+			BatchDocument document = new BatchDocument();
+			document.setId(String.valueOf(i));
+			document.setXml(batch.documents.get(i));
+			ndjson.append(gson.toJson(document)).append('\n');
+		}
+		client.signBatch(batch.keyName, ndjson.toString()).whenComplete((body, failure) -> {
+			if (failure != null) {
+				batch.results.forEach(result -> result.completeExceptionally(failure));
+				return;
+			}
+			boolean[] answered = new boolean[batch.documents.size()];
+			try {
+				for (String line : body.split("\n")) {
+					if ("".equals(line.trim())) {
+						continue;
+					}
+					BatchResult signed = gson.fromJson(line, BatchResult.class);
+					int index = (int) signed.getIndex();
+					if (index < 0 || index >= answered.length || answered[index]) {
+						throw new IllegalStateException("Unexpected index "+signed.getIndex()+" in the response of the batch");
+					}
+					answered[index] = true;
+					if (signed.getXml() != null) {
+						batch.results.get(index).complete(signed.getXml());
+					}else if (signed.getError() != null && signed.getError().startsWith("busy:")) {
+						signAlone(batch, index);
+					}else {
+						batch.results.get(index).completeExceptionally(new SignerClientException(0, signed.getError()));
+					}
+				}
+			}catch(RuntimeException e) {
+				// a malformed response, the documents not answered yet fail with it
+				for (int i = 0; i < answered.length; i++) {
+					if (!answered[i]) {
+						answered[i] = true;
+						batch.results.get(i).completeExceptionally(new SignerClientException(0, "Malformed response of the batch: "+e.getMessage()));
+					}
+				}
+			}
+			// a batch cut short by the service
+			for (int i = 0; i < answered.length; i++) {
+				if (!answered[i]) {
+					batch.results.get(i).completeExceptionally(new SignerClientException(0, "The service did not return the document"));
+				}
+			}
+		});
+	}
+
+	private void signAlone(Batch batch, int index) {
+		CompletableFuture<String> result = batch.results.get(index);
+		client.signOne(batch.keyName, batch.documents.get(index)).whenComplete((signed, failure) -> {
+			if (failure != null) {
+				result.completeExceptionally(failure);
+			}else {
+				result.complete(signed);
+			}
+		});
+	}
+
+	private static class Batch {
+		private final String keyName;
+		private final List<String> documents = new ArrayList<>();
+		private final List<CompletableFuture<String>> results = new ArrayList<>();
+		private boolean sent = false;
+
+		private Batch(String keyName) {
+			this.keyName = keyName;
+		}
+	}
+}
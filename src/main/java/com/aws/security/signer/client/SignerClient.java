@@ -0,0 +1,221 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer.client;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.glassfish.jersey.client.filter.EncodingFilter;
+import org.glassfish.jersey.message.GZipEncoder;
+
+import com.aws.security.signer.NamedThreadFactory;
+
+/**
+ * Java client of the signer. Calls are asynchronous and return a CompletableFuture. They run on at most
+ * maxConnections threads of the client, each one reusing a keep alive connection of the JDK from call to call. The JDK
+ * keeps up to http.maxConnections (5 by default) idle connections per host, an application that runs more calls at
+ * once than that may raise it. Responses are requested gzip compressed.
+ *
+ * Calls answered with 429 or 503, which the service sends before doing any work, are retried after the Retry-After
+ * of the response, or after an exponential backoff with jitter when there is none, up to maxAttempts. Signatures and
+ * validations are also retried on connection failures and other 5xx errors. Key creations are not, they may have
+ * happened. Futures of calls that failed complete with a {@link SignerClientException} or the connection failure.
+ *
+ * With maxBatchSize above 1, concurrent signatures of the same key are sent together to /xml/batch/sign/{key},
+ * see {@link SignBatcher}.
+ *
+ *   try (SignerClient client = new SignerClient("http://signer:8080", new ClientOptions())) {
+ *       String signedXml = client.sign("my-key", xml).join();
+ *   }
+ *
+ * @author lddecaro@amazon.com
+ */
+public class SignerClient implements AutoCloseable {
+
+	private static final String NDJSON = "application/x-ndjson";
+
+	private final ClientOptions options;
+	private final ExecutorService executor;
+	private final ScheduledExecutorService scheduler;
+	private final Client client;
+	private final WebTarget xml;
+	private final SignBatcher batcher;
+	private final Set<CompletableFuture<String>> pending = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param baseUri URL of the service, e.g. http://signer:8080
+	 */
+	public SignerClient(String baseUri, ClientOptions options) {
+		this.options = options;
+		this.executor = Executors.newFixedThreadPool(options.getMaxConnections(), new NamedThreadFactory("signer-client-"));
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("signer-client-retry-"));
+		this.client = ClientBuilder.newBuilder()
+									.executorService(executor)
+									.connectTimeout(options.getConnectTimeoutMillis(), TimeUnit.MILLISECONDS)
+									.readTimeout(options.getReadTimeoutMillis(), TimeUnit.MILLISECONDS)
+									.register(EncodingFilter.class)
+									.register(GZipEncoder.class)
+									.build();
+		this.xml = client.target(baseUri).path("xml");
+		this.batcher = options.getMaxBatchSize() > 1 ? new SignBatcher(this, scheduler, options.getMaxBatchSize(), options.getBatchLingerMillis()) : null;
+	}
+
+	/**
+	 * Signs the whole document, enveloped, with the KeyInfo and canonicalization configured for the label.
+	 *
+	 * @return the signed document
+	 */
+	public CompletableFuture<String> sign(String keyName, String xml) {
+		return batcher != null ? batcher.sign(keyName, xml) : signOne(keyName, xml);
+	}
+
+	/**
+	 * Validates the document against the certificate of the label, or against the key it carries when keyName is null.
+	 */
+	public CompletableFuture<Boolean> validate(String keyName, String signedXml) {
+		WebTarget validate = keyName == null ? xml.path("validate") : xml.path("validate").path(keyName);
+		return post(validate, MediaType.APPLICATION_XML, signedXml, true).thenApply(valid -> Boolean.valueOf(valid.trim()));
+	}
+
+	/**
+	 * Creates the key and its self signed certificate.
+	 *
+	 * @param certificateJson the certificate data, as in run/certdata.json
+	 * @return the answer of the service
+	 */
+	public CompletableFuture<String> createKey(String keyName, String certificateJson) {
+		return post(xml.path("create").path(keyName), MediaType.TEXT_PLAIN, certificateJson, false);
+	}
+
+	CompletableFuture<String> signOne(String keyName, String document) {
+		return post(xml.path("sign").path(keyName), MediaType.APPLICATION_XML, document, true);
+	}
+
+	CompletableFuture<String> signBatch(String keyName, String ndjson) {
+		return post(xml.path("batch").path("sign").path(keyName), NDJSON, ndjson, true);
+	}
+
+	private CompletableFuture<String> post(WebTarget target, String mediaType, String body, boolean idempotent) {
+		CompletableFuture<String> result = new CompletableFuture<>();
+		pending.add(result);
+		result.whenComplete((response, failure) -> pending.remove(result));
+		attempt(target, Entity.entity(body, mediaType), idempotent, 1, result);
+		return result;
+	}
+
+	private void attempt(WebTarget target, Entity<String> entity, boolean idempotent, int attempt, CompletableFuture<String> result) {
+
+		target.request().async().post(entity, new InvocationCallback<Response>() {
+
+			@Override
+			public void completed(Response response) {
+				int status = response.getStatus();
+				long retryAfter = retryAfter(response.getHeaderString(HttpHeaders.RETRY_AFTER));
+				String body;
+				try {
+					body = response.readEntity(String.class);
+				} catch (RuntimeException e) {
+					failed(e);
+					return;
+				} finally {
+					response.close();
+				}
+				if (status < 300) {
+					result.complete(body);
+				}else if ((status == 429 || status == 503 || (idempotent && status >= 500)) && attempt < options.getMaxAttempts()) {
+					retry(target, entity, idempotent, attempt, result, retryAfter);
+				}else {
+					result.completeExceptionally(new SignerClientException(status, body));
+				}
+			}
+
+			@Override
+			public void failed(Throwable throwable) {
+				if (idempotent && attempt < options.getMaxAttempts()) {
+					retry(target, entity, idempotent, attempt, result, -1);
+				}else {
+					result.completeExceptionally(throwable);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param retryAfter milliseconds asked by the service, -1 when it did not say
+	 */
+	private void retry(WebTarget target, Entity<String> entity, boolean idempotent, int attempt, CompletableFuture<String> result, long retryAfter) {
+		long backoff = Math.min(options.getMaxBackoffMillis(), options.getBackoffMillis() << Math.min(attempt - 1, 20));
+		long delay = retryAfter >= 0 ? retryAfter : ThreadLocalRandom.current().nextLong(backoff + 1);
+		try {
+			scheduler.schedule(() -> attempt(target, entity, idempotent, attempt + 1, result), delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException re) {
+			result.completeExceptionally(new SignerClientException(0, "The client was closed"));
+		}
+	}
+
+	/**
+	 * Milliseconds of a Retry-After in seconds, -1 when there is none or it is a date.
+	 */
+	private static long retryAfter(String header) {
+		try {
+			return header == null ? -1 : TimeUnit.SECONDS.toMillis(Long.parseLong(header.trim()));
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Sends the signatures waiting for their batch, waits up to the read timeout for the calls in flight, retries
+	 * included, and releases the connections and threads. Calls not finished by then fail with a
+	 * {@link SignerClientException}.
+	 */
+	@Override
+	public void close() {
+		if (batcher != null) {
+			batcher.flush();
+		}
+		try {
+			CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).get(options.getReadTimeoutMillis(), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | TimeoutException e) {
+			// the failures are in the futures of the calls
+		}
+		scheduler.shutdownNow();
+		executor.shutdown();
+		client.close();
+		for (CompletableFuture<String> call : pending) {
+			call.completeExceptionally(new SignerClientException(0, "The client was closed"));
+		}
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer.client;
+
+/**
+ * A call answered with an error status, or a document of a batch the service could not sign.
+ *
+ * @author lddecaro@amazon.com
+ */
+public class SignerClientException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int status;
+
+	public SignerClientException(int status, String message) {
+		super(status > 0 ? status+": "+message : message);
+		this.status = status;
+	}
+
+	/**
+	 * @return the HTTP status of the response, 0 for a document of a batch
+	 */
+	public int getStatus() {
+		return status;
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the admission control in front of a handler of the JDK HTTP server that holds the large documents for a while.
+ *
+ * @author lddecaro@amazon.com
+ */
+public class AdmissionFilterTest {
+
+	private static final long HOLD_MILLIS = 600;
+
+	private HttpServer server;
+	private ExecutorService clients;
+	private AdmissionFilter.MemoryBudget budget;
+
+	@Before
+	public void start() throws Exception {
+		//two documents of 60 bytes do not fit in the budget together
+		budget = new AdmissionFilter.MemoryBudget(100, 1);
+		AdmissionFilter.Lanes lanes = new AdmissionFilter.Lanes(new AdmissionFilter.Lane(4, 4, 200), new AdmissionFilter.Lane(4, 4, 200));
+		AdmissionFilter admission = new AdmissionFilter(lanes, lanes, path -> false, budget, 10, 1);
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(Executors.newFixedThreadPool(4));
+		server.createContext("/", exchange -> {
+			try (InputStream body = exchange.getRequestBody()) {
+				while (body.read() >= 0) {
+				}
+				Thread.sleep(HOLD_MILLIS);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			exchange.sendResponseHeaders(200, -1);
+			exchange.close();
+		}).getFilters().add(admission);
+		server.start();
+		clients = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void stop() {
+		clients.shutdownNow();
+		server.stop(0);
+	}
+
+	@Test
+	public void releasesNothingWhenTimedOutWaitingForMemory() throws Exception {
+		Future<Integer> first = clients.submit(() -> post(60));
+		Thread.sleep(HOLD_MILLIS / 3);
+		assertEquals(429, post(60));
+		assertEquals(200, first.get().intValue());
+		assertEquals(0L, memory().get("used"));
+		assertEquals(1L, memory().get("exhausted"));
+		//the budget is still the same: two documents that do not fit together still wait for each other
+		first = clients.submit(() -> post(60));
+		Thread.sleep(HOLD_MILLIS / 3);
+		assertEquals(429, post(60));
+		assertEquals(200, first.get().intValue());
+		assertEquals(0L, memory().get("used"));
+	}
+
+	private Map<String, Object> memory() {
+		return budget.stats();
+	}
+
+	private int post(int bytes) throws Exception {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:"+server.getAddress().getPort()+"/xml/sign/k1").openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(bytes);
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(new byte[bytes]);
+		}
+		int status = connection.getResponseCode();
+		connection.disconnect();
+		return status;
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2011-2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.aws.security.signer.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+
+import org.glassfish.jersey.jdkhttp.JdkHttpServerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.aws.security.signer.BatchDocument;
+import com.aws.security.signer.BatchResult;
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the client against a stub of the signer on the JDK HTTP server.
+ *
+ * @author lddecaro@amazon.com
+ */
+public class SignerClientTest {
+
+	private static HttpServer server;
+	private static String baseUri;
+
+	@BeforeClass
+	public static void start() {
+		server = JdkHttpServerFactory.createHttpServer(URI.create("http://localhost:0/"), new ResourceConfig(StubSigner.class));
+		baseUri = "http://localhost:"+server.getAddress().getPort();
+	}
+
+	@AfterClass
+	public static void stop() {
+		server.stop(0);
+	}
+
+	@After
+	public void reset() {
+		StubSigner.busy.set(0);
+		StubSigner.retryAfter = "0";
+		StubSigner.batchAnswer = BatchAnswer.SIGNED;
+		StubSigner.signCalls.set(0);
+		StubSigner.batchCalls.set(0);
+		StubSigner.batchSizes.clear();
+	}
+
+	@Test
+	public void retriesAfterTooManyRequests() throws Exception {
+		StubSigner.busy.set(2);
+		try (SignerClient client = new SignerClient(baseUri, new ClientOptions())) {
+			assertEquals("signed:<a/>", client.sign("k1", "<a/>").get(10, TimeUnit.SECONDS));
+		}
+		assertEquals(3, StubSigner.signCalls.get());
+	}
+
+	@Test
+	public void failsAfterMaxAttempts() throws Exception {
+		StubSigner.busy.set(10);
+		ClientOptions options = new ClientOptions();
+		options.setMaxAttempts(2);
+		try (SignerClient client = new SignerClient(baseUri, options)) {
+			client.sign("k1", "<a/>").get(10, TimeUnit.SECONDS);
+			fail("signed while the service was busy");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof SignerClientException);
+			assertEquals(429, ((SignerClientException) e.getCause()).getStatus());
+		}
+		assertEquals(2, StubSigner.signCalls.get());
+	}
+
+	@Test
+	public void batchesConcurrentSignatures() throws Exception {
+		try (SignerClient client = new SignerClient(baseUri, batching())) {
+			List<CompletableFuture<String>> signed = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				signed.add(client.sign("k1", "<a"+i+"/>"));
+			}
+			for (int i = 0; i < 3; i++) {
+				assertEquals("signed:<a"+i+"/>", signed.get(i).get(10, TimeUnit.SECONDS));
+			}
+		}
+		assertEquals(1, StubSigner.batchCalls.get());
+		assertEquals(0, StubSigner.signCalls.get());
+		assertEquals(3, StubSigner.batchSizes.get(0).intValue());
+	}
+
+	@Test
+	public void signsBusyDocumentsAlone() throws Exception {
+		StubSigner.batchAnswer = BatchAnswer.SECOND_BUSY;
+		try (SignerClient client = new SignerClient(baseUri, batching())) {
+			CompletableFuture<String> first = client.sign("k1", "<a0/>");
+			CompletableFuture<String> second = client.sign("k1", "<a1/>");
+			assertEquals("signed:<a0/>", first.get(10, TimeUnit.SECONDS));
+			assertEquals("signed:<a1/>", second.get(10, TimeUnit.SECONDS));
+		}
+		assertEquals(1, StubSigner.batchCalls.get());
+		assertEquals(1, StubSigner.signCalls.get());
+	}
+
+	@Test
+	public void failsTheBatchOnAMalformedResponse() throws Exception {
+		for (BatchAnswer answer : new BatchAnswer[] {BatchAnswer.MALFORMED, BatchAnswer.OUT_OF_RANGE}) {
+			StubSigner.batchAnswer = answer;
+			try (SignerClient client = new SignerClient(baseUri, batching())) {
+				CompletableFuture<String> first = client.sign("k1", "<a0/>");
+				CompletableFuture<String> second = client.sign("k1", "<a1/>");
+				assertFailed(first);
+				assertFailed(second);
+			}
+		}
+	}
+
+	@Test
+	public void closeFailsPendingRetries() throws Exception {
+		StubSigner.busy.set(10);
+		StubSigner.retryAfter = "60";
+		ClientOptions options = new ClientOptions();
+		options.setReadTimeoutMillis(500);
+		CompletableFuture<String> signed;
+		try (SignerClient client = new SignerClient(baseUri, options)) {
+			signed = client.sign("k1", "<a/>");
+			while (StubSigner.signCalls.get() == 0) {
+				Thread.sleep(10);
+			}
+		}
+		assertFailed(signed);
+	}
+
+	private static ClientOptions batching() {
+		ClientOptions options = new ClientOptions();
+		options.setMaxBatchSize(8);
+		options.setBatchLingerMillis(200);
+		return options;
+	}
+
+	private static void assertFailed(CompletableFuture<String> result) throws Exception {
+		try {
+			result.get(10, TimeUnit.SECONDS);
+			fail("completed without error");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof SignerClientException);
+		}
+	}
+
+	enum BatchAnswer {SIGNED, SECOND_BUSY, MALFORMED, OUT_OF_RANGE}
+
+	@Path("xml")
+	public static class StubSigner {
+
+		static final AtomicInteger busy = new AtomicInteger();
+		static final AtomicInteger signCalls = new AtomicInteger();
+		static final AtomicInteger batchCalls = new AtomicInteger();
+		static final List<Integer> batchSizes = new ArrayList<>();
+		static volatile String retryAfter = "0";
+		static volatile BatchAnswer batchAnswer = BatchAnswer.SIGNED;
+
+		private final Gson gson = new Gson();
+
+		@POST
+		@Path("sign/{key}")
+		@Consumes("application/xml")
+		public Response sign(@PathParam("key") String key, String xml) {
+			signCalls.incrementAndGet();
+			if (busy.getAndDecrement() > 0) {
+				return Response.status(429).header(HttpHeaders.RETRY_AFTER, retryAfter).entity("busy").build();
+			}
+			return Response.ok("signed:"+xml).build();
+		}
+
+		@POST
+		@Path("batch/sign/{key}")
+		@Consumes("application/x-ndjson")
+		public Response signBatch(@PathParam("key") String key, String ndjson) {
+			batchCalls.incrementAndGet();
+			if (batchAnswer == BatchAnswer.MALFORMED) {
+				return Response.ok("not json\n").build();
+			}
+			StringBuilder answer = new StringBuilder();
+			String[] lines = ndjson.split("\n");
+			synchronized (batchSizes) {
+				batchSizes.add(lines.length);
+			}
+			for (int i = 0; i < lines.length; i++) {
+				BatchDocument document = gson.fromJson(lines[i], BatchDocument.class);
+				BatchResult result = new BatchResult(batchAnswer == BatchAnswer.OUT_OF_RANGE ? lines.length + i : i, document.getId());
+				if (batchAnswer == BatchAnswer.SECOND_BUSY && i == 1) {
+					result.setError("busy: the queue of the key is full");
+				}else {
+					result.setXml("signed:"+document.getXml());
+				}
+				answer.append(gson.toJson(result)).append('\n');
+			}
+			return Response.ok(answer.toString()).build();
+		}
+	}
+}